@@ -0,0 +1,11 @@
+package chapter4.connection;
+
+/**
+ * 连接池的获取策略，见 ConnectionPool#setAcquisitionMode
+ */
+public enum AcquisitionMode {
+    // 归还的连接按 FIFO 直接交给等待最久的线程
+    FAIR,
+    // 允许新来的线程插队，等待者被唤醒后和它们一起抢
+    THROUGHPUT
+}
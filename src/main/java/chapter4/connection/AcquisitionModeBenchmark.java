@@ -0,0 +1,73 @@
+package chapter4.connection;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 高竞争下对比 FAIR 和 THROUGHPUT 两种获取策略：threads 个线程抢 poolSize 个连接，每次持有 holdMicros 微秒，
+ * 输出吞吐和获取等待时间的分位数
+ * 用法：AcquisitionModeBenchmark [threads] [poolSize] [seconds] [holdMicros]
+ */
+public class AcquisitionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int holdMicros = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        System.out.println("threads=" + threads + " poolSize=" + poolSize + " seconds=" + seconds + " hold=" + holdMicros + "us");
+        for (int i = 0; i < 2; i++) {
+            for (AcquisitionMode mode : AcquisitionMode.values()) {
+                ConnectionPool pool = new ConnectionPool(poolSize);
+                pool.setAcquisitionMode(mode);
+                ConcurrentHistogram acquire = new ConcurrentHistogram();
+                long ops = run(pool, threads, seconds, holdMicros, acquire);
+                // 第一轮当预热
+                if (i == 1) {
+                    System.out.printf("%-10s %8d ops/s  acquire(us) p50=%d p99=%d p999=%d max=%d%n", mode, ops / seconds,
+                            acquire.getValueAtPercentile(50), acquire.getValueAtPercentile(99),
+                            acquire.getValueAtPercentile(99.9), acquire.getMax());
+                }
+            }
+        }
+    }
+
+    static long run(ConnectionPool pool, int threads, int seconds, int holdMicros, ConcurrentHistogram acquire)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        LongAdder ops = new LongAdder();
+        long holdNanos = TimeUnit.MICROSECONDS.toNanos(holdMicros);
+        long[] stopAt = new long[1];
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.nanoTime() < stopAt[0]) {
+                        long begin = System.nanoTime();
+                        Connection connection = pool.fetchConnection(-1);
+                        long acquired = System.nanoTime();
+                        acquire.record((acquired - begin) / 1000);
+                        // 模拟持有连接期间的工作
+                        while (System.nanoTime() - acquired < holdNanos) {
+                            // 忙等
+                        }
+                        pool.releaseConnection(connection);
+                        ops.increment();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    end.countDown();
+                }
+            }, "BenchmarkThread-" + i).start();
+        }
+        stopAt[0] = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        end.await();
+        return ops.sum();
+    }
+}
@@ -0,0 +1,59 @@
+package chapter4.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 对比两种连接的调用开销：原来 Proxy + InvocationHandler 的反射分发，和池里手写委托的 PooledConnectionWrapper。
+ * 每轮调用 setReadOnly / getCatalog / clearWarnings 各一次，再测一下借出加 close 归还的开销。
+ * 用法：ConnectionDispatchBenchmark [rounds]
+ */
+public class ConnectionDispatchBenchmark {
+
+    // 防止 JIT 把调用当成无用代码消掉
+    static int sink;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+        Connection proxy = ConnectionDriver.createProxyConnection();
+        ConnectionPool pool = new ConnectionPool(1);
+        Connection wrapper = pool.fetchConnection(-1);
+
+        // 预热
+        for (int i = 0; i < 3; i++) {
+            calls(proxy, rounds);
+            calls(wrapper, rounds);
+        }
+        System.out.printf("Proxy dispatch:   %.1f ns/round%n", calls(proxy, rounds));
+        System.out.printf("Wrapper dispatch: %.1f ns/round%n", calls(wrapper, rounds));
+
+        pool.releaseConnection(wrapper);
+        for (int i = 0; i < 3; i++) {
+            borrowAndClose(pool, rounds);
+        }
+        System.out.printf("Wrapper fetch + close: %.1f ns/round%n", borrowAndClose(pool, rounds));
+        System.out.println(sink == 42 ? "" : "done");
+    }
+
+    static double calls(Connection connection, int rounds) throws SQLException {
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            connection.setReadOnly((i & 1) == 0);
+            String catalog = connection.getCatalog();
+            connection.clearWarnings();
+            sink += catalog == null ? i : catalog.length();
+        }
+        return (double) (System.nanoTime() - begin) / rounds;
+    }
+
+    static double borrowAndClose(ConnectionPool pool, int rounds) throws Exception {
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Connection connection = pool.fetchConnection(-1);
+            sink += System.identityHashCode(connection);
+            connection.close();
+        }
+        return (double) (System.nanoTime() - begin) / rounds;
+    }
+}
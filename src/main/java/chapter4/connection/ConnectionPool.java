@@ -1,49 +1,1372 @@
 package chapter4.connection;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
-import java.util.LinkedList;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * 无锁连接池：空闲连接按线程分条存放，等待的线程排在一个无锁队列里，归还连接时按FIFO顺序直接交给等待最久的线程
+ * <p>
+ * 每个线程还有一个"上次使用"的槽，归还后再获取会先拿回同一个连接，只 CAS 这个连接自己的状态，不碰共享结构；
+ * 槽里的连接空闲时仍然挂在分条栈上，其他线程可以把它偷走
+ */
 public class ConnectionPool {
 
-    private LinkedList<Connection> pool = new LinkedList<>();
+    // 所有连接池的异步等待共用一个时间轮，不用每个等待者挂一个线程
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer("ConnectionPool-timer", 10, TimeUnit.MILLISECONDS, 512);
+
+    private static final long ORIGIN = System.nanoTime() - 1;
+
+    private static final int PREWARM_THREADS = 4;
+
+    // 队列里放弃等待的等待者超过这个数、并且是还在等的两倍以上时整体清理一次
+    private static final int PURGE_THRESHOLD = 64;
+
+    static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    // 创建连接失败后重试的退避时间，从 100 毫秒开始翻倍，最多 10 秒
+    private static final long RETRY_INITIAL_MILLS = 100;
+    private static final long RETRY_MAX_MILLS = 10_000;
+
+    // 空闲连接按线程分条，每条是一个栈：归还时压到当前线程那一条的栈顶，下次获取优先拿回自己刚归还的连接
+    private final ConcurrentLinkedDeque<PooledConnection>[] stripes;
+    private final int mask;
+
+    // 等待连接的线程，一次只唤醒一个，不再 notifyAll
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    private final ConcurrentHashMap<Connection, PooledConnection> entries = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<PooledConnection> lastUsed = new ThreadLocal<>();
+
+    private final LongAdder threadLocalHits = new LongAdder();
+    private final LongAdder stripeHits = new LongAdder();
+    private final LongAdder steals = new LongAdder();
+    private final LongAdder handoffs = new LongAdder();
+
+    private volatile AcquisitionMode mode = AcquisitionMode.FAIR;
+
+    private volatile boolean metricsEnabled;
+    // 打开了指标或泄漏检测，借出时需要记录时间
+    private volatile boolean tracking;
+    private volatile long leakThresholdNanos;
+    private volatile boolean leakStackSampling;
+    private volatile boolean reclaimLeaked;
+    private ScheduledFuture<?> leakTask;
+    private volatile long validationIntervalMills;
+    private volatile int validationTimeoutSeconds = 5;
+    private ScheduledFuture<?> validationTask;
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder creationFailures = new LongAdder();
+    private volatile RuntimeException lastCreationFailure;
+    private volatile boolean shutdown;
+    // 分区被移除后关闭，归还的连接直接关掉，见 close
+    private volatile boolean closed;
+    private final ConnectionPoolStats stats = new ConnectionPoolStats(this);
+    private final AtomicInteger pendingWaiters = new AtomicInteger();
+    // 已经放弃等待、还留在 waiters 里的等待者数，只是估计值，见 abandoned
+    private final AtomicInteger abandonedWaiters = new AtomicInteger();
+
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final Supplier<Connection> factory;
+
+    // 连接总数，包括正在后台创建的
+    private final AtomicInteger total = new AtomicInteger();
+
+    // 按需在后台补充连接，以及定期回收空闲太久的连接；固定大小的池不需要这两个线程
+    private final ExecutorService creator;
+    private ScheduledExecutorService housekeeper;
+    // 两个线程池由 PartitionedConnectionPool 在各分区之间共用，shutdown 时只取消自己的任务
+    private final boolean sharedExecutors;
+    private ScheduledFuture<?> retireTask;
 
     public ConnectionPool(int initalSize) {
-        if (initalSize > 0) {
-            for (int i = 0; i < initalSize; i++) {
-                pool.addLast(ConnectionDriver.createConnection());
+        this(initalSize, initalSize, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public ConnectionPool(int minSize, int maxSize) {
+        this(minSize, maxSize, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * 启动时只在后台并行创建 minSize 个连接，需求超过供给时在后台逐个补充，最多到 maxSize；
+     * 超过 minSize 的连接空闲 idleTimeoutMills 后由后台线程关闭
+     */
+    public ConnectionPool(int minSize, int maxSize, long idleTimeoutMills) {
+        this(minSize, maxSize, idleTimeoutMills, ConnectionDriver::createConnection);
+    }
+
+    /**
+     * factory 用来创建新连接，比如 SimulatedConnectionDriver::createConnection；抛出的 RuntimeException 视为创建失败
+     */
+    public ConnectionPool(int minSize, int maxSize, long idleTimeoutMills, Supplier<Connection> factory) {
+        this(minSize, maxSize, idleTimeoutMills, factory, null, null);
+    }
+
+    /**
+     * sharedCreator 和 sharedHousekeeper 不为 null 时用它们创建连接和跑定时任务，不再自己开线程，
+     * 由调用方负责关闭
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConnectionPool(int minSize, int maxSize, long idleTimeoutMills, Supplier<Connection> factory,
+                   ExecutorService sharedCreator, ScheduledExecutorService sharedHousekeeper) {
+        if (minSize < 0 || maxSize < minSize || idleTimeoutMills <= 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMills);
+        this.factory = factory;
+        this.sharedExecutors = sharedCreator != null && sharedHousekeeper != null;
+        if (sharedExecutors) {
+            housekeeper = sharedHousekeeper;
+        }
+
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        stripes = new ConcurrentLinkedDeque[n];
+        mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ConcurrentLinkedDeque<>();
+        }
+        if (maxSize > minSize) {
+            creator = sharedExecutors ? sharedCreator
+                    : Executors.newSingleThreadExecutor(r -> daemon(r, "ConnectionPool-creator"));
+            long period = Math.max(idleTimeoutMills / 2, 1000L);
+            retireTask = housekeeper().scheduleWithFixedDelay(this::retireIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            creator = null;
+        }
+
+        // 初始连接在一个有界线程池里并行创建，构造函数不等它们；先建好的连接马上就能交给等待的调用方
+        total.set(minSize);
+        if (minSize > 0) {
+            ExecutorService warmer = sharedExecutors ? sharedCreator
+                    : Executors.newFixedThreadPool(Math.min(minSize, PREWARM_THREADS), r -> daemon(r, "ConnectionPool-warmer"));
+            for (int i = 0; i < minSize; i++) {
+                warmer.execute(this::addConnection);
+            }
+            if (!sharedExecutors) {
+                warmer.shutdown();
             }
         }
     }
 
     public void releaseConnection(Connection connection) {
-        if (connection != null) {
-            synchronized (pool) {
-                // 链接释放后需要进行通知，这样其他消费者能够感知到连接池中已经归还了一个链接
-                pool.addLast(connection);
-                pool.notifyAll();
+        if (connection == null) {
+            return;
+        }
+        PooledConnection entry;
+        PooledConnectionWrapper handle;
+        if (connection instanceof PooledConnectionWrapper && ((PooledConnectionWrapper) connection).pool == this) {
+            handle = (PooledConnectionWrapper) connection;
+            // 每次借出有自己的包装对象，重复 close 或者拿着旧的包装对象归还都在这里挡掉
+            if (!handle.markClosed()) {
+                return;
+            }
+            entry = handle.entry;
+        } else {
+            entry = entries.get(connection);
+            if (entry == null) {
+                // 已经关掉的连接（比如被泄漏检测回收后借用方迟到的归还）不收
+                if (isClosed(connection)) {
+                    return;
+                }
+                // 不是池里创建的连接，和原来一样收进池里
+                entry = register(connection);
+                total.incrementAndGet();
+            }
+            // 物理连接上看不出是哪一次借出，直接归还的一律当作结束当前这次借出，当前的包装对象随之作废；
+            // 只有通过包装对象 close 才能识别出对旧借出的重复归还
+            handle = entry.handle;
+            if (handle != null && !handle.markClosed()) {
+                return;
+            }
+        }
+        // 同一次借出的重复归还已经被上面包装对象的 CAS 挡掉；这里挡的是没有借出过的连接和已经回收的连接
+        if (entry.state.get() != PooledConnection.IN_USE) {
+            return;
+        }
+        long borrowedAt = entry.borrowedAt.get();
+        if (borrowedAt != 0L) {
+            // 和泄漏检测抢同一次借出，抢输了说明连接已经被当作泄漏回收，这次归还直接丢掉
+            if (borrowedAt == PooledConnection.RECLAIMED || !entry.borrowedAt.compareAndSet(borrowedAt, 0L)) {
+                return;
+            }
+            entry.borrowStack = null;
+            if (metricsEnabled) {
+                stats.holdTime.record((ticks() - borrowedAt) / 1000);
             }
         }
+        returned(entry);
+        try {
+            if (handle != null) {
+                handle.reset();
+            }
+        } catch (SQLException e) {
+            // 连回滚都失败的连接不能再给别人用，关掉换一个新的
+            e.printStackTrace();
+            entry.state.set(PooledConnection.REMOVED);
+            entries.remove(entry.connection);
+            close(entry.connection);
+            addConnection();
+            return;
+        }
+        entry.lastAccessed = System.nanoTime();
+        lastUsed.set(entry);
+        release(entry);
+        if (closed) {
+            closeIdle();
+        }
     }
 
     public Connection fetchConnection(long mills) throws InterruptedException {
-        synchronized (pool) {
+        if (!tracking) {
+            PooledConnection entry = acquire(mills);
+            return entry == null ? null : entry.newHandle();
+        }
+        long start = ticks();
+        PooledConnection entry = acquire(mills);
+        if (entry == null) {
+            if (metricsEnabled) {
+                stats.timeouts.increment();
+            }
+            return null;
+        }
+        PooledConnectionWrapper handle = entry.newHandle();
+        borrowedAt(entry, start);
+        return handle;
+    }
+
+    /**
+     * 只拿空闲连接，拿不到马上返回 null，不排队；grow 为 false 时也不为此创建新连接。
+     * 给 PartitionedConnectionPool 从别的分区借空闲连接用，不算作一次超时
+     */
+    Connection tryFetchIdle(boolean grow) {
+        long start = tracking ? ticks() : 0L;
+        PooledConnection entry = lastUsed.get();
+        if (entry != null && entry.tryAcquire()) {
+            threadLocalHits.increment();
+        } else if ((entry = pollIdle(true)) != null) {
+            borrowed(entry);
+        } else {
+            if (grow) {
+                grow();
+            }
+            return null;
+        }
+        PooledConnectionWrapper handle = entry.newHandle();
+        borrowedAt(entry, start);
+        return handle;
+    }
+
+    private PooledConnection acquire(long mills) throws InterruptedException {
+        PooledConnection entry = lastUsed.get();
+        if (entry != null && entry.tryAcquire()) {
+            threadLocalHits.increment();
+            return entry;
+        }
+        entry = pollIdle(true);
+        if (entry != null) {
+            return borrowed(entry);
+        }
+        grow();
+        if (mills == 0) {
+            return null;
+        }
+        if (mode == AcquisitionMode.THROUGHPUT) {
+            return borrowed(awaitSignal(mills));
+        }
+
+        ThreadWaiter waiter = new ThreadWaiter(Thread.currentThread());
+        enqueue(waiter);
+        // 入队之后再检查一次，避免释放线程在我们入队前放回了连接
+        entry = pollIdle(true);
+        if (entry != null) {
+            return borrowed(cancel(waiter, entry));
+        }
+
+        long deadline = mills < 0 ? 0L : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mills);
+        for (;;) {
+            entry = waiter.handed();
+            if (entry != null) {
+                handoffs.increment();
+                return borrowed(entry);
+            }
+            if (Thread.interrupted()) {
+                entry = cancel(waiter, null);
+                if (entry != null) {
+                    release(entry);
+                }
+                throw new InterruptedException();
+            }
             if (mills < 0) {
-                while (pool.isEmpty()) {
-                    pool.wait();
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return borrowed(cancel(waiter, null));
                 }
-                return pool.removeFirst();
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+    }
+
+    /**
+     * 异步获取连接，不阻塞调用线程。没有空闲连接时排进等待队列，由归还连接的线程直接完成返回的 future；
+     * 超时由共享的时间轮触发，future 以 TimeoutException 结束。mills 为负数表示一直等
+     */
+    public CompletableFuture<Connection> acquireAsync(long mills) {
+        long start = tracking ? ticks() : 0L;
+        PooledConnection entry = lastUsed.get();
+        if (entry != null && entry.tryAcquire()) {
+            threadLocalHits.increment();
+            PooledConnectionWrapper handle = entry.newHandle();
+            borrowedAt(entry, start);
+            return CompletableFuture.completedFuture(handle);
+        }
+        entry = pollIdle(true);
+        if (entry != null) {
+            PooledConnectionWrapper handle = entry.newHandle();
+            borrowedAt(entry, start);
+            return CompletableFuture.completedFuture(handle);
+        }
+        grow();
+
+        if (mills == 0) {
+            if (metricsEnabled) {
+                stats.timeouts.increment();
+            }
+            CompletableFuture<Connection> future = new CompletableFuture<>();
+            future.completeExceptionally(new TimeoutException("no connection available"));
+            return future;
+        }
+        AsyncWaiter waiter = new AsyncWaiter(start);
+        enqueue(waiter);
+        // 和同步获取一样，入队之后再检查一次
+        entry = pollIdle(true);
+        if (entry != null) {
+            if (waiter.future.complete(entry.newHandle())) {
+                waiter.abandon();
+                borrowedAt(entry, start);
+            } else {
+                release(entry);
+            }
+            return waiter.future;
+        }
+        if (mills > 0) {
+            waiter.timeout = TIMER.schedule(waiter::expire, mills, TimeUnit.MILLISECONDS);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * 一次拿 n 个连接，要么全拿到，要么一个都不拿。空闲的不够就排队，排到队头以后归还的连接都预留给它，
+     * 后面的等待者先不服务，凑够 n 个一起交出。只有队头的批量调用方会攥着部分连接，两个批量调用方不会各拿一半互相等死。
+     * 超时返回 null，已经预留的连接还回池里，mills 的含义和 fetchConnection 一样
+     */
+    public List<Connection> fetchConnections(int n, long mills) throws InterruptedException {
+        if (n <= 0 || n > maxSize) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        long start = tracking ? ticks() : 0L;
+        PooledConnection[] batch = new PooledConnection[n];
+        int count = 0;
+        PooledConnection entry;
+        while (count < n && (entry = pollIdle(true)) != null) {
+            batch[count++] = entry;
+        }
+        if (count < n) {
+            for (int i = count; i < n; i++) {
+                grow();
+            }
+            if (mills == 0) {
+                for (int i = 0; i < count; i++) {
+                    release(batch[i]);
+                }
+                batch = null;
             } else {
-                long future = System.currentTimeMillis() + mills;
-                long remaining = mills;
-                while (remaining > 0 && pool.isEmpty()) {
-                    pool.wait(remaining);
-                    remaining = future - System.currentTimeMillis();
-                }
-                Connection result = null;
-                if (!pool.isEmpty()) {
-                    return pool.removeFirst();
-                } else  {
-                    return result;
+                batch = awaitBatch(batch, count, mills);
+            }
+        }
+        if (batch == null) {
+            if (metricsEnabled) {
+                stats.timeouts.increment();
+            }
+            return null;
+        }
+        List<Connection> connections = new ArrayList<>(n);
+        for (PooledConnection e : batch) {
+            connections.add(e.newHandle());
+            borrowedAt(e, start);
+        }
+        return connections;
+    }
+
+    /**
+     * 批量归还，等价于逐个调用 releaseConnection
+     */
+    public void releaseConnections(Collection<Connection> connections) {
+        for (Connection connection : connections) {
+            releaseConnection(connection);
+        }
+    }
+
+    /**
+     * 停掉后台线程，已经借出的连接仍然可以归还
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (sharedExecutors) {
+            // 共用的线程池不能关，只取消自己的定时任务；已经排进去的创建和重试见到 shutdown 会退回名额
+            for (ScheduledFuture<?> task : new ScheduledFuture<?>[]{retireTask, leakTask, validationTask}) {
+                if (task != null) {
+                    task.cancel(false);
+                }
+            }
+            return;
+        }
+        if (creator != null) {
+            creator.shutdownNow();
+        }
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+    }
+
+    /**
+     * 分区被移除时调用：shutdown 之后关掉所有空闲连接，之后归还的连接也直接关掉，不再放回池里
+     */
+    void close() {
+        shutdown();
+        closed = true;
+        closeIdle();
+    }
+
+    /**
+     * 借出的连接数，包括借给其他分区的
+     */
+    int getActiveConnections() {
+        int active = 0;
+        for (PooledConnection entry : entries.values()) {
+            if (entry.state.get() == PooledConnection.IN_USE) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public AcquisitionMode getAcquisitionMode() {
+        return mode;
+    }
+
+    /**
+     * FAIR：归还的连接直接交给等待最久的线程，新来的线程不能插队，尾延迟最好；
+     * THROUGHPUT：归还的连接放回空闲栈，新来的线程可以直接拿走，同时唤醒一个等待者去抢，吞吐更高。默认 FAIR
+     */
+    public void setAcquisitionMode(AcquisitionMode mode) {
+        this.mode = Objects.requireNonNull(mode);
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * 打开后记录获取耗时、持有时长和等待者数量的直方图，关掉时热路径上只多读一个 volatile
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        this.metricsEnabled = enabled;
+        this.tracking = enabled || leakThresholdNanos > 0;
+    }
+
+    public long getLeakDetectionThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos);
+    }
+
+    /**
+     * 借出超过 mills 还没归还的连接视为泄漏，由后台线程每隔 mills/2 检查一次，0 表示关闭。
+     * 关闭时借出和归还只多读一个 volatile，不记录任何东西
+     */
+    public synchronized void setLeakDetectionThreshold(long mills) {
+        if (leakTask != null) {
+            leakTask.cancel(false);
+            leakTask = null;
+        }
+        this.leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(mills, 0L));
+        this.tracking = metricsEnabled || mills > 0;
+        if (mills > 0) {
+            long period = Math.max(mills / 2, 10L);
+            leakTask = housekeeper().scheduleWithFixedDelay(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isLeakStackSampling() {
+        return leakStackSampling;
+    }
+
+    /**
+     * 打开后每次借出都记录借用方的调用栈，报告泄漏时一起打印，方便定位；这会在每次借出时创建一个异常对象
+     */
+    public void setLeakStackSampling(boolean sampling) {
+        this.leakStackSampling = sampling;
+    }
+
+    public boolean isReclaimLeakedConnections() {
+        return reclaimLeaked;
+    }
+
+    /**
+     * 打开后泄漏的连接会被关闭并从池里移除，再补一个新连接，借用方之后的归还会被忽略；关闭时只报告
+     */
+    public void setReclaimLeakedConnections(boolean reclaim) {
+        this.reclaimLeaked = reclaim;
+    }
+
+    public long getValidationInterval() {
+        return validationIntervalMills;
+    }
+
+    /**
+     * 每隔 mills 由后台线程逐个检查空闲连接（Connection.isValid），失效的关掉换新的，
+     * 同时把因为创建失败而不足 minSize 的连接补齐。借出时不做检查。0 表示关闭
+     */
+    public synchronized void setValidationInterval(long mills) {
+        if (validationTask != null) {
+            validationTask.cancel(false);
+            validationTask = null;
+        }
+        this.validationIntervalMills = Math.max(mills, 0L);
+        if (mills > 0) {
+            validationTask = housekeeper().scheduleWithFixedDelay(this::validateIdle, mills, mills, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeoutSeconds;
+    }
+
+    /**
+     * 传给 Connection.isValid 的超时时间（秒），默认 5
+     */
+    public void setValidationTimeout(int seconds) {
+        this.validationTimeoutSeconds = seconds;
+    }
+
+    /**
+     * 检测到的泄漏次数，同一次借出只算一次
+     */
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    /**
+     * 创建连接失败的次数，每次重试失败都算一次
+     */
+    public long getCreationFailureCount() {
+        return creationFailures.sum();
+    }
+
+    /**
+     * 最近一次创建连接失败的异常，没有失败过为 null
+     */
+    public RuntimeException getLastCreationFailure() {
+        return lastCreationFailure;
+    }
+
+    public ConnectionPoolMXBean getMXBean() {
+        return stats;
+    }
+
+    /**
+     * 把指标注册到平台 MBeanServer，ObjectName 为 chapter4.connection:type=ConnectionPool,name=poolName
+     */
+    public ObjectName registerMBean(String poolName) throws JMException {
+        ObjectName objectName = new ObjectName("chapter4.connection:type=ConnectionPool,name=" + poolName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+        return objectName;
+    }
+
+    /**
+     * 正在等待连接的线程和异步请求数
+     */
+    public int getPendingWaiters() {
+        return pendingWaiters.get();
+    }
+
+    /**
+     * 当前连接总数，包括正在后台创建的
+     */
+    public int getTotalConnections() {
+        return total.get();
+    }
+
+    /**
+     * 获取时命中线程本地槽的次数
+     */
+    public long getThreadLocalHitCount() {
+        return threadLocalHits.sum();
+    }
+
+    /**
+     * 从当前线程自己那一条栈上拿到连接的次数
+     */
+    public long getStripeHitCount() {
+        return stripeHits.sum();
+    }
+
+    /**
+     * 从其他线程的分条栈（包括其他线程本地槽里空闲的连接）偷到连接的次数
+     */
+    public long getStealCount() {
+        return steals.sum();
+    }
+
+    /**
+     * 等待后由归还线程直接交接到手的次数
+     */
+    public long getHandoffCount() {
+        return handoffs.sum();
+    }
+
+    public double getThreadLocalHitRate() {
+        long hits = threadLocalHits.sum();
+        long total = hits + stripeHits.sum() + steals.sum() + handoffs.sum();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * 拿不到空闲连接时调用：没到上限就先占一个名额，再到后台创建，创建好的连接走正常的归还流程交给等待者
+     */
+    private void grow() {
+        if (creator == null) {
+            return;
+        }
+        for (;;) {
+            int current = total.get();
+            if (current >= maxSize) {
+                return;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        try {
+            creator.execute(this::addConnection);
+        } catch (RejectedExecutionException e) {
+            // 已经 shutdown
+            total.decrementAndGet();
+        }
+    }
+
+    /**
+     * 在当前线程创建一个连接放进池里，调用前 total 里已经为它占好了名额
+     */
+    private void addConnection() {
+        addConnection(0);
+    }
+
+    /**
+     * 创建一个连接放进池里，调用前已经在 total 里占好了名额。创建失败时名额不退，记进失败次数，
+     * 按指数退避在后台重试，固定大小的池不开校验也能补回来；池已经 shutdown 才放弃并退回名额
+     */
+    private void addConnection(int attempt) {
+        if (shutdown && sharedExecutors) {
+            // 共用的线程池里在 shutdown 之前排进来的创建任务
+            total.decrementAndGet();
+            return;
+        }
+        PooledConnection entry;
+        try {
+            entry = register(factory.get());
+        } catch (RuntimeException e) {
+            creationFailures.increment();
+            lastCreationFailure = e;
+            if (!shutdown) {
+                long delay = Math.min(RETRY_MAX_MILLS, RETRY_INITIAL_MILLS << Math.min(attempt, 10));
+                try {
+                    housekeeper().schedule(() -> addConnection(attempt + 1), delay, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException ignored) {
+                    // 已经 shutdown
+                }
+            }
+            total.decrementAndGet();
+            return;
+        }
+        release(entry);
+        if (closed) {
+            closeIdle();
+        }
+    }
+
+    /**
+     * 找出借出超过阈值的连接。只报告的话同一次借出只报一次；回收的话先把 borrowedAt CAS 成 RECLAIMED，
+     * 和借用方的归还抢同一个借出时间戳，保证不会误收已经归还又被别人借走的连接
+     */
+    private void detectLeaks() {
+        long threshold = leakThresholdNanos;
+        if (threshold <= 0) {
+            return;
+        }
+        long now = ticks();
+        for (PooledConnection entry : entries.values()) {
+            long borrowedAt = entry.borrowedAt.get();
+            if (borrowedAt <= 0L || now - borrowedAt < threshold || entry.state.get() != PooledConnection.IN_USE) {
+                continue;
+            }
+            Throwable stack = entry.borrowStack;
+            if (!reclaimLeaked) {
+                if (entry.leakReportedAt != borrowedAt) {
+                    entry.leakReportedAt = borrowedAt;
+                    leaks.increment();
+                    reportLeak(entry, now - borrowedAt, stack, false);
+                }
+            } else if (entry.borrowedAt.compareAndSet(borrowedAt, PooledConnection.RECLAIMED)) {
+                // 借用方迟到的归还会被包装对象的 CAS 或者 state 挡掉，条目可以直接从 entries 里去掉
+                entry.state.set(PooledConnection.REMOVED);
+                entries.remove(entry.connection);
+                // 借用方手里的包装对象作废，之后的调用抛异常，不会再用到已经关掉的连接
+                PooledConnectionWrapper handle = entry.handle;
+                if (handle != null) {
+                    handle.markClosed();
+                }
+                entry.borrowStack = null;
+                returned(entry);
+                if (entry.leakReportedAt != borrowedAt) {
+                    leaks.increment();
+                }
+                reportLeak(entry, now - borrowedAt, stack, true);
+                close(entry.connection);
+                // 名额直接留给补上的新连接
+                addConnection();
+            }
+        }
+    }
+
+    /**
+     * 一次只占用一个空闲连接做检查，检查完走正常的归还流程，等待者不会因为校验拿不到连接
+     */
+    private void validateIdle() {
+        for (PooledConnection entry : entries.values()) {
+            if (!entry.tryAcquire()) {
+                continue;
+            }
+            boolean valid;
+            try {
+                valid = entry.connection.isValid(validationTimeoutSeconds);
+            } catch (SQLException | RuntimeException e) {
+                valid = false;
+            }
+            if (valid) {
+                release(entry);
+            } else {
+                entry.state.set(PooledConnection.REMOVED);
+                entries.remove(entry.connection);
+                close(entry.connection);
+                // 名额留给新连接
+                addConnection();
+            }
+        }
+        // 创建失败的名额由 addConnection 自己重试，这里补的是其他原因少掉的
+        for (int missing = minSize - total.get(); missing > 0; missing--) {
+            total.incrementAndGet();
+            addConnection();
+        }
+    }
+
+    private static void reportLeak(PooledConnection entry, long heldNanos, Throwable stack, boolean reclaimed) {
+        System.err.println("连接可能泄漏：" + entry.connection + " 已借出 " + TimeUnit.NANOSECONDS.toMillis(heldNanos) + "ms"
+                + (reclaimed ? "，已回收" : "") + (stack == null ? "（打开 leakStackSampling 可以看到借出位置）" : ""));
+        if (stack != null) {
+            stack.printStackTrace();
+        }
+    }
+
+    /**
+     * 相对于类加载时刻的纳秒数，总是正数，0 和负数可以留作标记
+     */
+    private static long ticks() {
+        return System.nanoTime() - ORIGIN;
+    }
+
+    private synchronized ScheduledExecutorService housekeeper() {
+        if (housekeeper == null) {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "ConnectionPool-housekeeper"));
+        }
+        return housekeeper;
+    }
+
+    /**
+     * 关闭空闲超过 idleTimeout 的连接，但至少保留 minSize 个。
+     * 连接先 CAS 成 REMOVED，还挂在分条栈或线程本地槽里的引用会在下次被取到时跳过
+     */
+    private void retireIdle() {
+        long now = System.nanoTime();
+        for (PooledConnection entry : entries.values()) {
+            if (total.get() <= minSize) {
+                return;
+            }
+            if (entry.state.get() == PooledConnection.IDLE
+                    && now - entry.lastAccessed > idleTimeoutNanos
+                    && entry.state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED)) {
+                entries.remove(entry.connection);
+                total.decrementAndGet();
+                close(entry.connection);
+            }
+        }
+    }
+
+    /**
+     * 池关闭后关掉所有空闲连接；和归还并发时，要么这里看到归还的连接，要么归还的一方看到 closed 再调用一次
+     */
+    private void closeIdle() {
+        for (PooledConnection entry : entries.values()) {
+            if (entry.state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED)) {
+                entries.remove(entry.connection);
+                total.decrementAndGet();
+                close(entry.connection);
+            }
+        }
+    }
+
+    private static boolean isClosed(Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private PooledConnection register(Connection connection) {
+        PooledConnection entry = new PooledConnection(this, connection);
+        PooledConnection existing = entries.putIfAbsent(connection, entry);
+        return existing != null ? existing : entry;
+    }
+
+    private PooledConnection borrowed(PooledConnection entry) {
+        if (entry != null) {
+            lastUsed.set(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 从别的分区借来的连接归还（或被当作泄漏回收）时，把借入方分区的计数减回去
+     */
+    private static void returned(PooledConnection entry) {
+        AtomicInteger borrower = entry.borrowedBy;
+        if (borrower != null) {
+            entry.borrowedBy = null;
+            borrower.decrementAndGet();
+        }
+    }
+
+    private void borrowedAt(PooledConnection entry, long start) {
+        if (start != 0L) {
+            long now = ticks();
+            if (metricsEnabled) {
+                stats.acquireTime.record((now - start) / 1000);
+            }
+            entry.borrowStack = leakStackSampling ? new Exception("连接在这里借出") : null;
+            entry.borrowedAt.set(now);
+        }
+    }
+
+    private void enqueue(Waiter waiter) {
+        waiters.offer(waiter);
+        int depth = pendingWaiters.incrementAndGet();
+        if (metricsEnabled) {
+            stats.pendingWaiters.record(depth);
+        }
+    }
+
+    /**
+     * 队头是批量等待者时两种模式都把连接预留给它，凑齐之前不服务后面的等待者
+     */
+    private void release(PooledConnection entry) {
+        for (;;) {
+            Waiter waiter = waiters.peek();
+            if (waiter instanceof BatchWaiter) {
+                BatchWaiter batch = (BatchWaiter) waiter;
+                int result = batch.reserve(entry);
+                if (result == BatchWaiter.RESERVED) {
+                    return;
+                }
+                // 凑齐了或者已经放弃等待，出队之后接着看下一个
+                waiters.remove(batch);
+                if (result == BatchWaiter.FILLED) {
+                    batch.leave();
+                    batch.wake();
+                    return;
+                }
+                continue;
+            }
+            if (mode == AcquisitionMode.THROUGHPUT) {
+                entry = releaseBarging(entry);
+                if (entry == null) {
+                    return;
+                }
+                continue;
+            }
+            if (waiter == null) {
+                makeIdle(entry);
+                // 放回之后如果又有线程入队等待，它可能已经错过了这个连接，重新取出一个交给它
+                if (waiters.isEmpty() || (entry = pollIdle(false)) == null) {
+                    return;
+                }
+                continue;
+            }
+            // 别的释放线程已经把它取走了
+            if (!waiters.remove(waiter)) {
+                continue;
+            }
+            boolean handed = waiter.handoff(entry);
+            waiter.leave();
+            if (handed) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * THROUGHPUT 模式：连接先放回空闲栈，谁先来谁拿，然后只唤醒队头一个等待者让它去抢。
+     * 异步等待者和切换模式前排队的同步等待者不会自己去抢，替它们抢一个交过去。
+     * 队头变成批量等待者时替它抢一个返回，由 release 预留给它，否则返回 null
+     */
+    private PooledConnection releaseBarging(PooledConnection entry) {
+        makeIdle(entry);
+        Waiter waiter;
+        while ((waiter = waiters.peek()) != null) {
+            if (waiter instanceof BatchWaiter) {
+                return pollIdle(false);
+            }
+            if (waiter instanceof SignalWaiter) {
+                if (waiters.remove(waiter)) {
+                    boolean signalled = ((SignalWaiter) waiter).signal();
+                    waiter.leave();
+                    if (signalled) {
+                        return null;
+                    }
+                }
+                continue;
+            }
+            PooledConnection idle = pollIdle(false);
+            if (idle == null) {
+                // 已经被插队的线程拿走了，等它归还时再服务这个等待者
+                return null;
+            }
+            if (!waiters.remove(waiter)) {
+                makeIdle(idle);
+                continue;
+            }
+            boolean handed = waiter.handoff(idle);
+            waiter.leave();
+            if (handed) {
+                return null;
+            }
+            makeIdle(idle);
+        }
+        return null;
+    }
+
+    private void makeIdle(PooledConnection entry) {
+        entry.state.set(PooledConnection.IDLE);
+        if (entry.queued.compareAndSet(false, true)) {
+            stripes[stripe()].addFirst(entry);
+        }
+    }
+
+    /**
+     * 放弃等待。如果取消失败说明释放线程已经把连接交了过来，这时手里多出来的那个要还回去。
+     * 取消的等待者留在队列里，释放线程轮到它时交接失败就跳过
+     */
+    private PooledConnection cancel(ThreadWaiter waiter, PooledConnection own) {
+        if (waiter.cancel()) {
+            waiter.abandon();
+            return own;
+        }
+        if (own != null) {
+            release(own);
+        }
+        return waiter.handed();
+    }
+
+    /**
+     * THROUGHPUT 模式下的单个获取：以 SignalWaiter 的身份排队，每次被唤醒都自己去抢，超时返回 null
+     */
+    private PooledConnection awaitSignal(long mills) throws InterruptedException {
+        long deadline = mills < 0 ? 0L : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mills);
+        SignalWaiter waiter = new SignalWaiter(Thread.currentThread());
+        enqueue(waiter);
+        for (;;) {
+            // 入队之后先再试一次，避免错过入队前的归还
+            PooledConnection entry = pollIdle(true);
+            if (entry != null) {
+                waiter.cancel();
+                return entry;
+            }
+            if (waiter.signalled.get()) {
+                // 被唤醒时已经出队了，没抢到就重新排队
+                waiter = new SignalWaiter(Thread.currentThread());
+                enqueue(waiter);
+                continue;
+            }
+            if (Thread.interrupted()) {
+                waiter.cancel();
+                throw new InterruptedException();
+            }
+            if (mills < 0) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    waiter.cancel();
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+    }
+
+    /**
+     * 以 BatchWaiter 的身份排队等凑齐 batch.length 个，grabbed 是排队前已经抢到的 count 个，超时返回 null
+     */
+    private PooledConnection[] awaitBatch(PooledConnection[] grabbed, int count, long mills) throws InterruptedException {
+        long deadline = mills < 0 ? 0L : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mills);
+        BatchWaiter waiter = new BatchWaiter(Thread.currentThread(), grabbed.length);
+        enqueue(waiter);
+        // 已经抢到的和入队前放回空闲栈的都走一遍 release：排在队头就预留给自己，前面还有等待者就按顺序先给它们
+        for (int i = 0; i < count; i++) {
+            release(grabbed[i]);
+        }
+        PooledConnection idle;
+        while (!waiter.filled && (idle = pollIdle(false)) != null) {
+            release(idle);
+        }
+        for (;;) {
+            if (waiter.filled) {
+                return waiter.batch;
+            }
+            if (Thread.interrupted()) {
+                if (!giveBack(waiter)) {
+                    for (PooledConnection entry : waiter.batch) {
+                        release(entry);
+                    }
+                }
+                throw new InterruptedException();
+            }
+            if (mills < 0) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return giveBack(waiter) ? null : waiter.batch;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+    }
+
+    /**
+     * 批量等待者放弃等待，预留的连接还回去；取消前刚好凑齐的返回 false，整批已经属于调用方
+     */
+    private boolean giveBack(BatchWaiter waiter) {
+        PooledConnection[] reserved = waiter.cancel();
+        if (reserved == null) {
+            return false;
+        }
+        for (PooledConnection entry : reserved) {
+            release(entry);
+        }
+        return true;
+    }
+
+    /**
+     * 放弃等待的等待者平时留在队列里由释放线程顺路跳过。池耗尽又一直没有归还时没人来跳过，
+     * 攒到还在等的两倍以上就整体清理一次，清理的开销均摊到每个放弃的等待者上是常数
+     */
+    private void abandoned() {
+        int abandoned = abandonedWaiters.incrementAndGet();
+        if (abandoned > PURGE_THRESHOLD && abandoned > 2 * pendingWaiters.get()
+                && abandonedWaiters.compareAndSet(abandoned, 0)) {
+            waiters.removeIf(Waiter::hasLeft);
+        }
+    }
+
+    private PooledConnection pollIdle(boolean record) {
+        int index = stripe();
+        PooledConnection entry;
+        while ((entry = stripes[index].pollFirst()) != null) {
+            if (entry.tryAcquireDequeued()) {
+                if (record) {
+                    stripeHits.increment();
+                }
+                return entry;
+            }
+        }
+        // 自己那一条空了，从其他条的栈底偷，栈底是最久没被用过的连接
+        for (int i = 1; i <= mask; i++) {
+            ConcurrentLinkedDeque<PooledConnection> stripe = stripes[(index + i) & mask];
+            while ((entry = stripe.pollLast()) != null) {
+                if (entry.tryAcquireDequeued()) {
+                    if (record) {
+                        steals.increment();
+                    }
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // 同步等待者取消后放进 item 的标记
+    private static final Object CANCELLED = new Object();
+
+    abstract class Waiter {
+        private final AtomicBoolean left = new AtomicBoolean();
+
+        /**
+         * 把连接交给这个等待者，已经取消或超时的返回 false
+         */
+        abstract boolean handoff(PooledConnection entry);
+
+        /**
+         * 等待者离开队列（拿到连接、取消或超时）时调用，只有第一次生效
+         */
+        void leave() {
+            if (left.compareAndSet(false, true)) {
+                pendingWaiters.decrementAndGet();
+            }
+        }
+
+        /**
+         * 不再等待但还留在队列里（取消、超时，或者入队后自己拿到了连接）时调用，代替 leave
+         */
+        void abandon() {
+            if (left.compareAndSet(false, true)) {
+                pendingWaiters.decrementAndGet();
+                abandoned();
+            }
+        }
+
+        boolean hasLeft() {
+            return left.get();
+        }
+    }
+
+    final class ThreadWaiter extends Waiter {
+        private final Thread thread;
+        private final AtomicReference<Object> item = new AtomicReference<>();
+
+        ThreadWaiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        boolean handoff(PooledConnection entry) {
+            if (item.compareAndSet(null, entry)) {
+                LockSupport.unpark(thread);
+                return true;
+            }
+            return false;
+        }
+
+        boolean cancel() {
+            return item.compareAndSet(null, CANCELLED);
+        }
+
+        PooledConnection handed() {
+            Object o = item.get();
+            return o instanceof PooledConnection ? (PooledConnection) o : null;
+        }
+    }
+
+    /**
+     * 只接收通知不接收连接的等待者，有连接归还时被唤醒，自己去和新来的线程一起抢。
+     * THROUGHPUT 模式的单个获取用它实现插队
+     */
+    final class SignalWaiter extends Waiter {
+        private final Thread thread;
+        final AtomicBoolean signalled = new AtomicBoolean();
+
+        SignalWaiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        boolean handoff(PooledConnection entry) {
+            signal();
+            return false;
+        }
+
+        boolean signal() {
+            if (signalled.compareAndSet(false, true)) {
+                LockSupport.unpark(thread);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 不再等待，留在队列里由释放线程跳过
+         */
+        void cancel() {
+            if (signalled.compareAndSet(false, true)) {
+                abandon();
+            }
+        }
+    }
+
+    /**
+     * 批量获取的等待者。排到队头之前什么也不拿；排到队头以后 release 把归还的连接逐个预留给它，
+     * 凑够 n 个一次交出再唤醒线程。预留和取消都在自己的锁里，不会和归还线程各做一半
+     */
+    final class BatchWaiter extends Waiter {
+        static final int RESERVED = 0;
+        static final int FILLED = 1;
+        // 已经凑齐或者已经取消，连接要交给下一个等待者
+        static final int CLOSED = 2;
+
+        private final Thread thread;
+        final PooledConnection[] batch;
+        private int reserved;
+        private boolean closed;
+        // 凑齐之后才设置，之后 batch 只由等待线程访问
+        volatile boolean filled;
+
+        BatchWaiter(Thread thread, int n) {
+            this.thread = thread;
+            this.batch = new PooledConnection[n];
+        }
+
+        /**
+         * 由 release 单独处理，不走这里
+         */
+        @Override
+        boolean handoff(PooledConnection entry) {
+            return false;
+        }
+
+        synchronized int reserve(PooledConnection entry) {
+            if (closed) {
+                return CLOSED;
+            }
+            batch[reserved++] = entry;
+            if (reserved < batch.length) {
+                return RESERVED;
+            }
+            closed = true;
+            filled = true;
+            return FILLED;
+        }
+
+        void wake() {
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * 不再等待，返回已经预留的连接，由调用方还回去；已经凑齐的返回 null
+         */
+        PooledConnection[] cancel() {
+            PooledConnection[] taken;
+            synchronized (this) {
+                if (filled) {
+                    return null;
+                }
+                closed = true;
+                taken = Arrays.copyOf(batch, reserved);
+                Arrays.fill(batch, null);
+                reserved = 0;
+            }
+            abandon();
+            return taken;
+        }
+    }
+
+    /**
+     * 异步等待者不占线程，归还连接的线程直接完成它的 future
+     */
+    final class AsyncWaiter extends Waiter {
+        final CompletableFuture<Connection> future = new CompletableFuture<>();
+        final long start;
+        volatile HashedWheelTimer.Timeout timeout;
+
+        AsyncWaiter(long start) {
+            this.start = start;
+        }
+
+        @Override
+        boolean handoff(PooledConnection entry) {
+            if (!future.complete(entry.newHandle())) {
+                return false;
+            }
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            handoffs.increment();
+            borrowedAt(entry, start);
+            return true;
+        }
+
+        /**
+         * 在时间轮线程上执行，不从队列里删除自己：ConcurrentLinkedQueue.remove 要从头扫描，
+         * 大批等待者同时超时时是 O(n²)。已经结束的 future 交接会失败，释放线程轮到它时跳过，攒多了由 abandoned 整体清理
+         */
+        void expire() {
+            if (future.completeExceptionally(new TimeoutException("no connection available"))) {
+                abandon();
+                if (metricsEnabled) {
+                    stats.timeouts.increment();
                 }
             }
         }
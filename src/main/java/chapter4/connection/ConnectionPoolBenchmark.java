@@ -0,0 +1,91 @@
+package chapter4.connection;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 新旧连接池在高并发下的吞吐对比：threads 个线程反复获取、归还连接
+ * 用法：ConnectionPoolBenchmark [threads] [poolSize] [rounds]
+ */
+public class ConnectionPoolBenchmark {
+
+    interface Pool {
+        Connection fetch() throws InterruptedException;
+
+        void release(Connection connection);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        Pool monitor = of(new MonitorConnectionPool(poolSize));
+        ConnectionPool connectionPool = new ConnectionPool(poolSize);
+        Pool lockFree = of(connectionPool);
+
+        // 先各跑两轮预热，再正式测
+        for (int i = 0; i < 2; i++) {
+            run(threads, rounds, monitor);
+            run(threads, rounds, lockFree);
+        }
+
+        System.out.println("threads=" + threads + " poolSize=" + poolSize + " rounds=" + rounds);
+        System.out.println("MonitorConnectionPool: " + run(threads, rounds, monitor) + " ops/s");
+        System.out.println("ConnectionPool:        " + run(threads, rounds, lockFree) + " ops/s");
+        System.out.printf("threadLocalHitRate=%.3f stripeHits=%d steals=%d handoffs=%d%n",
+                connectionPool.getThreadLocalHitRate(), connectionPool.getStripeHitCount(),
+                connectionPool.getStealCount(), connectionPool.getHandoffCount());
+    }
+
+    static Pool of(MonitorConnectionPool pool) {
+        return new Pool() {
+            public Connection fetch() throws InterruptedException {
+                return pool.fetchConnection(-1);
+            }
+
+            public void release(Connection connection) {
+                pool.releaseConnection(connection);
+            }
+        };
+    }
+
+    static Pool of(ConnectionPool pool) {
+        return new Pool() {
+            public Connection fetch() throws InterruptedException {
+                return pool.fetchConnection(-1);
+            }
+
+            public void release(Connection connection) {
+                pool.releaseConnection(connection);
+            }
+        };
+    }
+
+    static long run(int threads, int rounds, Pool pool) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        AtomicLong ops = new AtomicLong();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < rounds; j++) {
+                        Connection connection = pool.fetch();
+                        pool.release(connection);
+                    }
+                    ops.addAndGet(rounds);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    end.countDown();
+                }
+            }, "BenchmarkThread-" + i).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        return ops.get() * 1000_000_000L / (System.nanoTime() - begin);
+    }
+}
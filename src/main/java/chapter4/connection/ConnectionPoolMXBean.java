@@ -0,0 +1,47 @@
+package chapter4.connection;
+
+/**
+ * 连接池的运行指标，时间单位都是微秒。直方图只在 MetricsEnabled 打开时记录
+ */
+public interface ConnectionPoolMXBean {
+
+    public boolean isMetricsEnabled();
+
+    public void setMetricsEnabled(boolean enabled);
+
+    public int getTotalConnections();
+
+    public int getPendingWaiters();
+
+    public long getAcquireCount();
+
+    public long getAcquireTimeoutCount();
+
+    public long getCreationFailureCount();
+
+    public double getAcquireMeanMicros();
+
+    public long getAcquireP50Micros();
+
+    public long getAcquireP99Micros();
+
+    public long getAcquireP999Micros();
+
+    public long getAcquireMaxMicros();
+
+    public double getHoldMeanMicros();
+
+    public long getHoldP50Micros();
+
+    public long getHoldP99Micros();
+
+    public long getHoldMaxMicros();
+
+    public long getPendingWaitersP99();
+
+    public long getPendingWaitersMax();
+
+    public double getThreadLocalHitRate();
+
+    public void resetMetrics();
+}
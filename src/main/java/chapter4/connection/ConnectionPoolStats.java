@@ -0,0 +1,123 @@
+package chapter4.connection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接池的直方图和计数器，获取耗时、持有时长记录的是微秒，等待者数量在每次入队时采样
+ */
+final class ConnectionPoolStats implements ConnectionPoolMXBean {
+
+    final ConcurrentHistogram acquireTime = new ConcurrentHistogram();
+    final ConcurrentHistogram holdTime = new ConcurrentHistogram();
+    final ConcurrentHistogram pendingWaiters = new ConcurrentHistogram();
+    final LongAdder timeouts = new LongAdder();
+
+    private final ConnectionPool pool;
+
+    ConnectionPoolStats(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public boolean isMetricsEnabled() {
+        return pool.isMetricsEnabled();
+    }
+
+    @Override
+    public void setMetricsEnabled(boolean enabled) {
+        pool.setMetricsEnabled(enabled);
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return pool.getTotalConnections();
+    }
+
+    @Override
+    public int getPendingWaiters() {
+        return pool.getPendingWaiters();
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return acquireTime.getCount();
+    }
+
+    @Override
+    public long getAcquireTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getCreationFailureCount() {
+        return pool.getCreationFailureCount();
+    }
+
+    @Override
+    public double getAcquireMeanMicros() {
+        return acquireTime.getMean();
+    }
+
+    @Override
+    public long getAcquireP50Micros() {
+        return acquireTime.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getAcquireP99Micros() {
+        return acquireTime.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getAcquireP999Micros() {
+        return acquireTime.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getAcquireMaxMicros() {
+        return acquireTime.getMax();
+    }
+
+    @Override
+    public double getHoldMeanMicros() {
+        return holdTime.getMean();
+    }
+
+    @Override
+    public long getHoldP50Micros() {
+        return holdTime.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getHoldP99Micros() {
+        return holdTime.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getHoldMaxMicros() {
+        return holdTime.getMax();
+    }
+
+    @Override
+    public long getPendingWaitersP99() {
+        return pendingWaiters.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getPendingWaitersMax() {
+        return pendingWaiters.getMax();
+    }
+
+    @Override
+    public double getThreadLocalHitRate() {
+        return pool.getThreadLocalHitRate();
+    }
+
+    @Override
+    public void resetMetrics() {
+        acquireTime.reset();
+        holdTime.reset();
+        pendingWaiters.reset();
+        timeouts.reset();
+    }
+}
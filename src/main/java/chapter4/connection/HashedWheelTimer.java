@@ -0,0 +1,137 @@
+package chapter4.connection;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 时间轮：所有超时任务共用一个后台线程，按 tick 把任务挂到对应的格子上，到点时整格处理。
+ * 提交和取消都是无锁的，格子里的链表只有时间轮线程自己访问。精度是一个 tick
+ */
+final class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final String name;
+
+    // 新提交的任务先放这里，由时间轮线程在每个 tick 搬到格子上
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    HashedWheelTimer(String name, long tick, TimeUnit unit, int ticksPerWheel) {
+        int n = 1;
+        while (n < ticksPerWheel) {
+            n <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Timeout[n];
+        this.mask = n - 1;
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread worker = new Thread(this::run, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long startTime = System.nanoTime();
+        long tick = 0;
+        for (;;) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            transferPending(startTime, tick);
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferPending(long startTime, long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long calculated = (timeout.deadline - startTime) / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // 已经过期的任务放到当前格子，马上处理
+            int index = (int) (Math.max(calculated, tick) & mask);
+            timeout.next = wheel[index];
+            wheel[index] = timeout;
+        }
+    }
+
+    private void expire(int index) {
+        Timeout prev = null;
+        Timeout timeout = wheel[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove;
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                remove = true;
+            } else if (timeout.remainingRounds <= 0) {
+                remove = true;
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+                remove = false;
+            }
+            if (remove) {
+                timeout.next = null;
+                if (prev == null) {
+                    wheel[index] = next;
+                } else {
+                    prev.next = next;
+                }
+            } else {
+                prev = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    static final class Timeout {
+        static final int INIT = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        // 下面两个字段只有时间轮线程读写
+        private long remainingRounds;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        boolean cancel() {
+            return state.compareAndSet(INIT, CANCELLED);
+        }
+
+        private void expire() {
+            if (state.compareAndSet(INIT, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package chapter4.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模拟一次数据库调用的耗时分布，给 SimulatedConnectionDriver 用
+ */
+public interface LatencyModel {
+
+    // sample 返回这个值表示本次调用失败
+    long FAIL = -1L;
+
+    /**
+     * 本次调用的耗时（纳秒），返回 FAIL 表示本次调用失败
+     */
+    long sample(ThreadLocalRandom random);
+
+    static LatencyModel none() {
+        return random -> 0L;
+    }
+
+    static LatencyModel fixed(long micros) {
+        long nanos = TimeUnit.MICROSECONDS.toNanos(micros);
+        return random -> nanos;
+    }
+
+    static LatencyModel uniform(long minMicros, long maxMicros) {
+        if (minMicros < 0 || maxMicros < minMicros) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        long min = TimeUnit.MICROSECONDS.toNanos(minMicros);
+        long max = TimeUnit.MICROSECONDS.toNanos(maxMicros);
+        return random -> min == max ? min : random.nextLong(min, max + 1);
+    }
+
+    /**
+     * 对数正态分布，中位数为 medianMicros，sigma 越大长尾越重；0.5 左右比较接近真实数据库的响应时间
+     */
+    static LatencyModel logNormal(long medianMicros, double sigma) {
+        double mu = Math.log(TimeUnit.MICROSECONDS.toNanos(medianMicros));
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+    /**
+     * 以 probability 的概率额外卡顿 stallMillis，模拟锁等待、GC、网络抖动
+     */
+    default LatencyModel withStalls(double probability, long stallMillis) {
+        long stall = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        return random -> {
+            long nanos = sample(random);
+            return nanos != FAIL && random.nextDouble() < probability ? nanos + stall : nanos;
+        };
+    }
+
+    /**
+     * 以 probability 的概率让调用失败
+     */
+    default LatencyModel withFailures(double probability) {
+        return random -> random.nextDouble() < probability ? FAIL : sample(random);
+    }
+}
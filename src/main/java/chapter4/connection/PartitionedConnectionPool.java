@@ -0,0 +1,290 @@
+package chapter4.connection;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 多租户连接池：每个租户一个分区，分区是一个独立的 ConnectionPool，有自己的连接、上限和等待队列，
+ * 一个租户的线程排再多的队也只排在自己的分区里，不影响其他租户。
+ * <p>
+ * 自己分区没有空闲连接时，可以先从其他分区借空闲的连接，借入的数量不超过本分区的 borrowLimit；
+ * 只借没有等待者的分区里的空闲连接，不会从别的租户手里抢。借来的连接用完照常 close 或 releaseConnection，会回到原来的分区。
+ * <p>
+ * 所有分区共用一组后台线程创建连接和跑定时任务，线程数不随租户数增长；不再使用的租户用 removePartition 移除，
+ * 也可以用 setMaxPartitions 限制分区数
+ */
+public class PartitionedConnectionPool {
+
+    private static final int CREATOR_THREADS = 4;
+
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    // 借连接时遍历用的快照，增加和移除分区时整体替换
+    private volatile Partition[] snapshot = new Partition[0];
+
+    // 没有单独配置的租户第一次出现时使用的默认配置
+    private final int minSize;
+    private final int maxSize;
+    private final int borrowLimit;
+    private final Supplier<Connection> factory;
+
+    // 所有分区共用的后台线程：创建连接（包括启动时的预热），以及回收空闲连接、泄漏检测等定时任务
+    private final ExecutorService creator;
+    private final ScheduledExecutorService housekeeper;
+
+    private volatile int maxPartitions = Integer.MAX_VALUE;
+
+    private volatile boolean shutdown;
+
+    public PartitionedConnectionPool(int minSize, int maxSize, int borrowLimit) {
+        this(minSize, maxSize, borrowLimit, ConnectionDriver::createConnection);
+    }
+
+    /**
+     * 每个分区默认 minSize 到 maxSize 个连接，最多同时从其他分区借入 borrowLimit 个，0 表示不借
+     */
+    public PartitionedConnectionPool(int minSize, int maxSize, int borrowLimit, Supplier<Connection> factory) {
+        if (minSize < 0 || maxSize < minSize || maxSize == 0 || borrowLimit < 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowLimit = borrowLimit;
+        this.factory = factory;
+        ThreadPoolExecutor creator = new ThreadPoolExecutor(CREATOR_THREADS, CREATOR_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> ConnectionPool.daemon(r, "PartitionedConnectionPool-creator"));
+        creator.allowCoreThreadTimeOut(true);
+        this.creator = creator;
+        this.housekeeper = new ScheduledThreadPoolExecutor(1,
+                r -> ConnectionPool.daemon(r, "PartitionedConnectionPool-housekeeper"));
+    }
+
+    /**
+     * 最多同时存在的分区数，超过时新租户获取连接会抛出 IllegalStateException，默认不限制
+     */
+    public void setMaxPartitions(int maxPartitions) {
+        if (maxPartitions <= 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.maxPartitions = maxPartitions;
+    }
+
+    public int getMaxPartitions() {
+        return maxPartitions;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * 给某个租户单独指定配额，要在这个租户第一次获取连接之前调用
+     */
+    public synchronized void addPartition(String key, int minSize, int maxSize, int borrowLimit) {
+        if (minSize < 0 || maxSize < minSize || maxSize == 0 || borrowLimit < 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        if (partitions.containsKey(key)) {
+            throw new IllegalStateException("partition already exists: " + key);
+        }
+        add(key, minSize, maxSize, borrowLimit);
+    }
+
+    /**
+     * 按租户获取连接：先拿自己分区的空闲连接，没有就从其他分区借，借不到再在自己分区排队等待。
+     * mills 的含义和 ConnectionPool.fetchConnection 一样，超时返回 null
+     */
+    public Connection fetchConnection(String key, long mills) throws InterruptedException {
+        Partition partition = enter(key);
+        try {
+            Connection connection = partition.pool.tryFetchIdle(true);
+            if (connection != null) {
+                return connection;
+            }
+            connection = borrow(partition);
+            if (connection != null) {
+                return connection;
+            }
+            return partition.pool.fetchConnection(mills);
+        } finally {
+            partition.users.decrementAndGet();
+        }
+    }
+
+    /**
+     * 移除一个空闲的租户：没有线程正在这个分区获取连接、分区的连接也都已归还时，移除分区并关掉它的连接，返回 true；
+     * 否则什么也不做，返回 false。之后这个租户再获取连接会按默认配置重新创建分区，之前 getPartition 拿到的池不能再用
+     */
+    public synchronized boolean removePartition(String key) {
+        Partition partition = partitions.get(key);
+        if (partition == null || partition.users.get() > 0 || partition.pool.getActiveConnections() > 0) {
+            return false;
+        }
+        // 和 enter 相反的顺序：先标记再检查，刚进来的线程要么看到标记退出去重新找分区，要么在这里被看到而放弃移除
+        partition.removed = true;
+        if (partition.users.get() > 0) {
+            partition.removed = false;
+            return false;
+        }
+        partitions.remove(key);
+        Partition[] old = snapshot;
+        Partition[] next = new Partition[old.length - 1];
+        int i = 0;
+        for (Partition p : old) {
+            if (p != partition) {
+                next[i++] = p;
+            }
+        }
+        snapshot = next;
+        // 从旧快照里借走的连接归还时由 ConnectionPool 直接关掉
+        partition.pool.close();
+        return true;
+    }
+
+    /**
+     * 归还到连接原来所属的分区，和直接调用连接的 close 效果一样
+     */
+    public void releaseConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        if (!(connection instanceof PooledConnectionWrapper)) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        ((PooledConnectionWrapper) connection).pool.releaseConnection(connection);
+    }
+
+    /**
+     * 租户对应的分区，可以用来设置获取策略、打开指标等；租户不存在时按默认配置创建
+     */
+    public ConnectionPool getPartition(String key) {
+        return partition(key).pool;
+    }
+
+    /**
+     * 租户当前从其他分区借入的连接数
+     */
+    public int getBorrowedConnections(String key) {
+        Partition partition = partitions.get(key);
+        return partition == null ? 0 : partition.borrowed.get();
+    }
+
+    /**
+     * 租户累计从其他分区借到连接的次数
+     */
+    public long getBorrowCount(String key) {
+        Partition partition = partitions.get(key);
+        return partition == null ? 0L : partition.borrows.sum();
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (Partition partition : partitions.values()) {
+            partition.pool.shutdown();
+        }
+        creator.shutdownNow();
+        housekeeper.shutdownNow();
+    }
+
+    /**
+     * 找到租户的分区并登记为正在使用，用完要把 users 减一；分区刚好被移除时重新找
+     */
+    private Partition enter(String key) {
+        for (;;) {
+            Partition partition = partition(key);
+            partition.users.incrementAndGet();
+            if (!partition.removed) {
+                return partition;
+            }
+            partition.users.decrementAndGet();
+        }
+    }
+
+    private Partition partition(String key) {
+        Partition partition = partitions.get(key);
+        if (partition != null) {
+            return partition;
+        }
+        synchronized (this) {
+            partition = partitions.get(key);
+            return partition != null ? partition : add(key, minSize, maxSize, borrowLimit);
+        }
+    }
+
+    // 调用方持有 this 的锁
+    private Partition add(String key, int minSize, int maxSize, int borrowLimit) {
+        if (shutdown) {
+            throw new IllegalStateException("pool is shut down");
+        }
+        if (partitions.size() >= maxPartitions) {
+            throw new IllegalStateException("too many partitions: " + maxPartitions);
+        }
+        Partition partition = new Partition(new ConnectionPool(minSize, maxSize,
+                ConnectionPool.DEFAULT_IDLE_TIMEOUT, factory, creator, housekeeper), borrowLimit);
+        partitions.put(key, partition);
+        Partition[] old = snapshot;
+        Partition[] next = new Partition[old.length + 1];
+        System.arraycopy(old, 0, next, 0, old.length);
+        next[old.length] = partition;
+        snapshot = next;
+        return partition;
+    }
+
+    /**
+     * 先 CAS 占一个借入名额，再从随机的位置开始挨个分区找空闲连接，不会让其他分区为此新建连接
+     */
+    private Connection borrow(Partition partition) {
+        for (;;) {
+            int current = partition.borrowed.get();
+            if (current >= partition.borrowLimit) {
+                return null;
+            }
+            if (partition.borrowed.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        Partition[] all = snapshot;
+        int offset = all.length > 1 ? ThreadLocalRandom.current().nextInt(all.length) : 0;
+        for (int i = 0; i < all.length; i++) {
+            Partition lender = all[(offset + i) % all.length];
+            // 有等待者的分区自己都不够用
+            if (lender == partition || lender.pool.getPendingWaiters() > 0) {
+                continue;
+            }
+            Connection connection = lender.pool.tryFetchIdle(false);
+            if (connection != null) {
+                ((PooledConnectionWrapper) connection).entry.borrowedBy = partition.borrowed;
+                partition.borrows.increment();
+                return connection;
+            }
+        }
+        partition.borrowed.decrementAndGet();
+        return null;
+    }
+
+    static final class Partition {
+        final ConnectionPool pool;
+        final int borrowLimit;
+        // 当前借入的连接数，连接归还到原分区时由 ConnectionPool 减一
+        final AtomicInteger borrowed = new AtomicInteger();
+        final LongAdder borrows = new LongAdder();
+        // 正在这个分区获取连接的线程数，和 removed 一起保证不会移除正在用的分区
+        final AtomicInteger users = new AtomicInteger();
+        volatile boolean removed;
+
+        Partition(ConnectionPool pool, int borrowLimit) {
+            this.pool = pool;
+            this.borrowLimit = borrowLimit;
+        }
+    }
+}
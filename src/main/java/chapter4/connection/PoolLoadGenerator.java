@@ -0,0 +1,81 @@
+package chapter4.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 用 SimulatedConnectionDriver 压测 ConnectionPool：clients 个模拟客户端各自循环
+ * "思考 - 取连接 - commit - 归还"，最后输出吞吐和端到端延迟分位数，用来在上线前估算池子大小。
+ * 用法：PoolLoadGenerator [clients] [minSize] [maxSize] [seconds] [thinkMillis]
+ */
+public class PoolLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int minSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int maxSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int thinkMillis = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        // 查询中位数 2ms、千分之一的概率卡 200ms、千分之一失败；建连 20~50ms
+        SimulatedConnectionDriver driver = new SimulatedConnectionDriver()
+                .latency("commit", LatencyModel.logNormal(2000, 0.6).withStalls(0.001, 200).withFailures(0.001))
+                .connectLatency(LatencyModel.uniform(20_000, 50_000));
+        ConnectionPool pool = new ConnectionPool(minSize, maxSize, TimeUnit.MINUTES.toMillis(1), driver::createConnection);
+        pool.setMetricsEnabled(true);
+
+        ConcurrentHistogram latency = new ConcurrentHistogram();
+        LongAdder timeouts = new LongAdder();
+        LongAdder failures = new LongAdder();
+        long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch end = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < stopAt) {
+                        if (thinkMillis > 0) {
+                            TimeUnit.MICROSECONDS.sleep(random.nextLong(thinkMillis * 1000L * 2));
+                        }
+                        long start = System.nanoTime();
+                        Connection connection = pool.fetchConnection(1000);
+                        if (connection == null) {
+                            timeouts.increment();
+                            continue;
+                        }
+                        try {
+                            connection.commit();
+                        } catch (SQLException e) {
+                            failures.increment();
+                        } finally {
+                            pool.releaseConnection(connection);
+                        }
+                        latency.record((System.nanoTime() - start) / 1000);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    end.countDown();
+                }
+            }, "Client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        end.await();
+        pool.shutdown();
+
+        ConnectionPoolMXBean stats = pool.getMXBean();
+        System.out.println("clients=" + clients + " pool=" + minSize + ".." + maxSize + " seconds=" + seconds + " think=" + thinkMillis + "ms");
+        System.out.println("throughput=" + latency.getCount() / seconds + " ops/s, timeouts=" + timeouts.sum()
+                + ", failures=" + failures.sum() + ", connections=" + pool.getTotalConnections());
+        System.out.printf("latency(us) p50=%d p99=%d p999=%d max=%d%n", latency.getValueAtPercentile(50),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMax());
+        System.out.printf("acquire(us) p50=%d p99=%d p999=%d, waiters max=%d%n", stats.getAcquireP50Micros(),
+                stats.getAcquireP99Micros(), stats.getAcquireP999Micros(), stats.getPendingWaitersMax());
+    }
+}
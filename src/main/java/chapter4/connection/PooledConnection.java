@@ -0,0 +1,74 @@
+package chapter4.connection;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 池中的一个连接。谁能用这个连接只由 state 的 CAS 决定，
+ * 所以同一个条目可以同时出现在线程本地槽和分条栈里，拿不到就跳过
+ */
+final class PooledConnection {
+
+    static final int IDLE = 0;
+    static final int IN_USE = 1;
+    // 已经被回收，不会再回到 IDLE
+    static final int REMOVED = 2;
+
+    final ConnectionPool pool;
+
+    final Connection connection;
+
+    // 当前这次借出给调用方的包装对象，close 时归还到池里；每次借出新建一个，还没借出过为 null
+    volatile PooledConnectionWrapper handle;
+
+    final AtomicInteger state = new AtomicInteger(IN_USE);
+
+    // 是否已经在某个分条栈里，保证每个条目在栈里最多出现一次
+    final AtomicBoolean queued = new AtomicBoolean();
+
+    // 最近一次归还的时间（System.nanoTime），用来判断空闲了多久
+    volatile long lastAccessed = System.nanoTime();
+
+    // borrowedAt 被泄漏检测回收后的值
+    static final long RECLAIMED = -1L;
+
+    // 借出的时间（ConnectionPool.ticks），只在打开指标或泄漏检测时记录，0 表示没有记录
+    final AtomicLong borrowedAt = new AtomicLong();
+
+    // 打开调用栈采样时借出位置的调用栈
+    volatile Throwable borrowStack;
+
+    // 已经报告过泄漏的那次借出时间，避免重复报告
+    volatile long leakReportedAt;
+
+    // 被别的分区借走时指向借入方的借入计数，归还时减一；见 PartitionedConnectionPool
+    volatile AtomicInteger borrowedBy;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    /**
+     * 借出时调用，换一个新的包装对象，之前借出的包装对象已经关闭，不会再碰到这个连接
+     */
+    PooledConnectionWrapper newHandle() {
+        PooledConnectionWrapper handle = new PooledConnectionWrapper(pool, this, connection);
+        this.handle = handle;
+        return handle;
+    }
+
+    boolean tryAcquire() {
+        return state.get() == IDLE && state.compareAndSet(IDLE, IN_USE);
+    }
+
+    /**
+     * 从分条栈里取出后调用：先清掉入栈标记再抢，抢失败的话持有者归还时会重新入栈
+     */
+    boolean tryAcquireDequeued() {
+        queued.set(false);
+        return state.compareAndSet(IDLE, IN_USE);
+    }
+}
@@ -0,0 +1,441 @@
+package chapter4.connection;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 池里借出去的连接。手写的委托实现，不走 Proxy 和 InvocationHandler，每次调用不用装箱参数数组、比较方法名，也不分配对象。
+ * close 把连接还给池子；关闭自动提交后创建过语句但没有提交就归还的，先回滚并恢复自动提交，
+ * 这次借出里改过的只读、隔离级别和 catalog 也恢复成原来的值，下一个借用方拿到的是干净的连接。
+ * <p>
+ * 每次借出都新建一个包装对象，只有几个字段。close 之后这个对象就作废了：再次 close 什么也不做，
+ * 其他方法抛 SQLException，不会碰到已经借给别人的同一个物理连接
+ */
+final class PooledConnectionWrapper implements Connection {
+
+    final ConnectionPool pool;
+    final PooledConnection entry;
+    private final Connection delegate;
+
+    // 1 表示这次借出已经结束（归还或者被泄漏检测回收），用 CLOSED 做 CAS，只有第一次生效
+    private volatile int closed;
+
+    // 下面的字段只有这次的借用方访问，归还经过 closed 的 CAS 和池里的队列，保证了可见性
+    private boolean autoCommit = true;
+    // 关闭自动提交后创建过语句，且还没有 commit 或 rollback
+    private boolean dirty;
+    // 这次借出里改过的会话设置，以及第一次修改之前的值
+    private boolean readOnlyChanged;
+    private boolean originalReadOnly;
+    private boolean isolationChanged;
+    private int originalIsolation;
+    private boolean catalogChanged;
+    private String originalCatalog;
+
+    PooledConnectionWrapper(ConnectionPool pool, PooledConnection entry, Connection delegate) {
+        this.pool = pool;
+        this.entry = entry;
+        this.delegate = delegate;
+    }
+
+    Connection delegate() {
+        return delegate;
+    }
+
+    /**
+     * 结束这次借出，只有第一次调用返回 true
+     */
+    boolean markClosed() {
+        return CLOSED.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * 归还时由连接池调用，清理这次借出留下的事务状态和会话设置
+     */
+    void reset() throws SQLException {
+        if (dirty) {
+            dirty = false;
+            delegate.rollback();
+        }
+        if (!autoCommit) {
+            autoCommit = true;
+            delegate.setAutoCommit(true);
+        }
+        if (readOnlyChanged) {
+            readOnlyChanged = false;
+            delegate.setReadOnly(originalReadOnly);
+        }
+        if (isolationChanged) {
+            isolationChanged = false;
+            delegate.setTransactionIsolation(originalIsolation);
+        }
+        if (catalogChanged) {
+            catalogChanged = false;
+            delegate.setCatalog(originalCatalog);
+        }
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        markDirty();
+        return open().createStatement();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        markDirty();
+        return open().prepareStatement(sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        markDirty();
+        return open().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return open().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        open().setAutoCommit(autoCommit);
+        this.autoCommit = autoCommit;
+        if (autoCommit) {
+            // 按 JDBC 规范，打开自动提交会提交当前事务
+            dirty = false;
+        }
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return open().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        open().commit();
+        dirty = false;
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        open().rollback();
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed == 0) {
+            pool.releaseConnection(this);
+        }
+    }
+
+    /**
+     * 这次借出结束后总是返回 true，不再去问可能已经借给别人的物理连接
+     */
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed != 0 || delegate.isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return open().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        Connection connection = open();
+        if (!readOnlyChanged) {
+            originalReadOnly = connection.isReadOnly();
+            readOnlyChanged = true;
+        }
+        connection.setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return open().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        Connection connection = open();
+        if (!catalogChanged) {
+            originalCatalog = connection.getCatalog();
+            catalogChanged = true;
+        }
+        connection.setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return open().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        Connection connection = open();
+        if (!isolationChanged) {
+            originalIsolation = connection.getTransactionIsolation();
+            isolationChanged = true;
+        }
+        connection.setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return open().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return open().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        open().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        markDirty();
+        return open().createStatement(resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        markDirty();
+        return open().prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        markDirty();
+        return open().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return open().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        open().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        open().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return open().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return open().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return open().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        open().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        open().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        markDirty();
+        return open().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        markDirty();
+        return open().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        markDirty();
+        return open().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        markDirty();
+        return open().prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        markDirty();
+        return open().prepareStatement(sql, columnIndexes);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        markDirty();
+        return open().prepareStatement(sql, columnNames);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return open().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return open().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return open().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return open().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return closed == 0 && delegate.isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        checkClientInfo();
+        delegate.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        checkClientInfo();
+        delegate.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return open().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return open().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return open().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return open().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        open().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return open().getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        open().abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        open().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return open().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        Connection connection = open();
+        if (iface.isInstance(connection)) {
+            return iface.cast(connection);
+        }
+        return connection.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        Connection connection = open();
+        return iface.isInstance(connection) || connection.isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return "Pooled" + delegate;
+    }
+
+    /**
+     * 这次借出还没结束就返回物理连接，否则抛异常
+     */
+    private Connection open() throws SQLException {
+        if (closed != 0) {
+            throw new SQLException("连接已经关闭");
+        }
+        return delegate;
+    }
+
+    // setClientInfo 只能抛 SQLClientInfoException
+    private void checkClientInfo() throws SQLClientInfoException {
+        if (closed != 0) {
+            throw new SQLClientInfoException("连接已经关闭", null);
+        }
+    }
+
+    private void markDirty() {
+        if (!autoCommit) {
+            dirty = true;
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<PooledConnectionWrapper> CLOSED =
+            AtomicIntegerFieldUpdater.newUpdater(PooledConnectionWrapper.class, "closed");
+}
@@ -0,0 +1,121 @@
+package chapter4.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 可配置延迟的假驱动：每个 Connection 方法可以单独指定耗时分布、卡顿和失败率，建连本身也可以有延迟，
+ * 用来在上线前压测连接池的大小。没有配置的方法使用默认分布，返回值是对应类型的默认值
+ */
+public class SimulatedConnectionDriver {
+
+    private final Map<String, LatencyModel> methodLatency = new ConcurrentHashMap<>();
+    private volatile LatencyModel defaultLatency = LatencyModel.none();
+    private volatile LatencyModel connectLatency = LatencyModel.none();
+
+    /**
+     * 指定某个方法（比如 commit、prepareStatement）的耗时分布
+     */
+    public SimulatedConnectionDriver latency(String methodName, LatencyModel model) {
+        methodLatency.put(methodName, model);
+        return this;
+    }
+
+    public SimulatedConnectionDriver defaultLatency(LatencyModel model) {
+        this.defaultLatency = model;
+        return this;
+    }
+
+    /**
+     * 建立连接的耗时分布，失败时 createConnection 抛出 IllegalStateException
+     */
+    public SimulatedConnectionDriver connectLatency(LatencyModel model) {
+        this.connectLatency = model;
+        return this;
+    }
+
+    public Connection createConnection() {
+        if (!simulate(connectLatency)) {
+            throw new IllegalStateException("simulated connect failure");
+        }
+        return (Connection) Proxy.newProxyInstance(SimulatedConnectionDriver.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new SimulatedHandler());
+    }
+
+    /**
+     * 按分布阻塞当前线程，返回 false 表示这次调用应该失败
+     */
+    static boolean simulate(LatencyModel model) {
+        long nanos = model.sample(ThreadLocalRandom.current());
+        if (nanos == LatencyModel.FAIL) {
+            return false;
+        }
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+        return true;
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    class SimulatedHandler implements InvocationHandler {
+        private volatile boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                switch (name) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return "SimulatedConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+            switch (name) {
+                case "isClosed":
+                    return closed;
+                case "isValid":
+                    return !closed && simulate(latencyOf(name));
+                case "getAutoCommit":
+                    return Boolean.TRUE;
+                case "close":
+                    closed = true;
+                    return null;
+                default:
+                    if (closed) {
+                        throw new SQLException("connection is closed");
+                    }
+                    if (!simulate(latencyOf(name))) {
+                        throw new SQLException("simulated failure in " + name);
+                    }
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        private LatencyModel latencyOf(String name) {
+            LatencyModel model = methodLatency.get(name);
+            return model != null ? model : defaultLatency;
+        }
+    }
+}
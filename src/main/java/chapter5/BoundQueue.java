@@ -1,54 +1,208 @@
 package chapter5;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 有界阻塞队列。满了或者空了先自旋一会儿再 await，生产和消费一般在几微秒内就能对上，
+ * 自旋能省掉一次 park/unpark；自旋等到了下次就多转一些，没等到就少转一些，单核机器上不自旋。
+ * 记录在两个 Condition 上等待的线程数，没人等的时候不 signal
+ */
 public class BoundQueue<T> {
+
+    private static final int MAX_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1024 : 0;
+    private static final int MIN_SPINS = MAX_SPINS / 64;
+
     private Object[] items;
 
-    private int addCount, removeCount, count;
+    private int addCount, removeCount;
+    // 自旋时在锁外读
+    private volatile int count;
 
     private ReentrantLock reentrantLock = new ReentrantLock();
     private Condition condition1 = reentrantLock.newCondition();
     private Condition condition2 = reentrantLock.newCondition();
 
+    // 在 condition1（等不满）和 condition2（等不空）上等待的线程数，持有锁时读写
+    private int notFullWaiters, notEmptyWaiters;
+
+    // 当前的自旋次数，多个线程同时调整时丢掉一次更新没有关系
+    private volatile int spins = MIN_SPINS;
+
     public BoundQueue(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
         this.items = new Object[size];
     }
 
     public void add(T t) throws InterruptedException {
+        if (count == items.length) {
+            spinWhile(true);
+        }
         reentrantLock.lock();
+        try {
+            awaitNotFull();
+            enqueue(t);
+            if (notEmptyWaiters > 0) {
+                condition2.signal();
+            }
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
 
-        while (count == items.length) {
-            condition1.await();
+    /**
+     * 依次放入 c 里的所有元素，整批只拿一次锁；满了就等，等之前先唤醒消费者把已经放进去的取走
+     */
+    public void addAll(Collection<? extends T> c) throws InterruptedException {
+        if (c.isEmpty()) {
+            return;
         }
-        items[addCount] = t;
-        if (++addCount == items.length) {
-            addCount = 0;
+        if (count == items.length) {
+            spinWhile(true);
         }
-        count++;
-        condition2.signal();
+        reentrantLock.lock();
+        try {
+            int added = 0;
+            for (T t : c) {
+                if (count == items.length) {
+                    signalNotEmpty(added);
+                    added = 0;
+                    awaitNotFull();
+                }
+                enqueue(t);
+                added++;
+            }
+            signalNotEmpty(added);
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T remove() throws InterruptedException {
+        if (count == 0) {
+            spinWhile(false);
+        }
+        reentrantLock.lock();
+        try {
+            awaitNotEmpty();
+            Object t = dequeue();
+            if (notFullWaiters > 0) {
+                condition1.signal();
+            }
+            return (T) t;
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+    /**
+     * 等到至少有一个元素，然后一次取走最多 max 个，整批只拿一次锁
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> drainTo(int max) throws InterruptedException {
+        if (max <= 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        if (count == 0) {
+            spinWhile(false);
+        }
+        reentrantLock.lock();
+        try {
+            awaitNotEmpty();
+            int n = Math.min(max, count);
+            List<T> drained = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                drained.add((T) dequeue());
+            }
+            signalNotFull(n);
+            return drained;
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
 
-        reentrantLock.unlock();
+    public int size() {
+        return count;
+    }
 
+    // 以下方法调用方持有锁
 
+    private void awaitNotFull() throws InterruptedException {
+        if (count < items.length) {
+            return;
+        }
+        notFullWaiters++;
+        try {
+            while (count == items.length) {
+                condition1.await();
+            }
+        } finally {
+            notFullWaiters--;
+        }
     }
 
-    public T remove() throws InterruptedException {
-        reentrantLock.lock();
-        while (count == 0) {
-            condition2.await();
+    private void awaitNotEmpty() throws InterruptedException {
+        if (count > 0) {
+            return;
         }
-        Object t = items[removeCount++];
-        if (removeCount == items.length) {
-            removeCount = 0;
+        notEmptyWaiters++;
+        try {
+            while (count == 0) {
+                condition2.await();
+            }
+        } finally {
+            notEmptyWaiters--;
         }
+    }
 
+    private void enqueue(T t) {
+        items[addCount] = t;
+        if (++addCount == items.length) {
+            addCount = 0;
+        }
+        count++;
+    }
+
+    private Object dequeue() {
+        Object t = items[removeCount];
+        items[removeCount] = null;
+        if (++removeCount == items.length) {
+            removeCount = 0;
+        }
         count--;
-        condition1.signal();
-        reentrantLock.unlock();
+        return t;
+    }
 
-        return (T) t;
+    // 放进了 n 个元素，最多唤醒 n 个消费者
+    private void signalNotEmpty(int n) {
+        for (int i = 0; i < n && i < notEmptyWaiters; i++) {
+            condition2.signal();
+        }
+    }
+
+    private void signalNotFull(int n) {
+        for (int i = 0; i < n && i < notFullWaiters; i++) {
+            condition1.signal();
+        }
+    }
 
+    /**
+     * 在锁外自旋等队列不满（full 为 true）或者不空，最多转 spins 次，结果用来调整下次的自旋次数
+     */
+    private void spinWhile(boolean full) {
+        int limit = spins;
+        for (int i = 0; i < limit; i++) {
+            if (full ? count < items.length : count > 0) {
+                spins = Math.min(MAX_SPINS, limit * 2);
+                return;
+            }
+        }
+        spins = Math.max(MIN_SPINS, limit / 2);
     }
 }
@@ -1,40 +1,1447 @@
 package chapter5;
 
-import java.util.HashMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
-public class Cache {
-    static Map<String, Object> cacheMap = new HashMap<>();
-    static ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    static Lock readLock = readWriteLock.readLock();
-    static Lock writeLock = readWriteLock.writeLock();
+/**
+ * 有界的并发缓存，淘汰策略是 W-TinyLFU：新条目先进一个占容量 1% 的 LRU 窗口，被挤出窗口后要和试用区里
+ * 最老的条目比访问频率（FrequencySketch 估计），赢了才能留下；主区分成试用区和保护区两段 LRU，
+ * 试用区的条目再被访问一次就升进保护区。
+ * <p>
+ * 容量默认按条目数算；构造时传入 Weigher 的话按权重之和算（比如值的字节数），各段的大小和淘汰都看权重。
+ * 每个条目的权重在写入时算好放在节点上，读不碰权重；覆盖后权重变了的话通过写缓冲调整总数。
+ * <p>
+ * 读不加锁，只把"访问了哪个条目"放进有损的 ReadBuffer；写直接改哈希表（默认 ConcurrentHashMap，见 ConcurrencyMode），再把对淘汰策略的改动排进写缓冲。
+ * 两个缓冲由抢到维护锁（tryLock）的线程批量应用，其他线程不会等这个锁。
+ * <p>
+ * 可以设置写入后过期和访问后过期，到期时间挂在分层时间轮 TimerWheel 上，维护时推进时间轮移除到期的条目，
+ * 不扫描整个 map，也不为每个条目提交定时任务；读的时候按条目自己的时间判断，过期了直接当作不存在。
+ * <p>
+ * get(key, loader) 未命中时同一个键同时只有一个线程调用 loader，其他并发未命中的线程等着用它的结果，热点键失效时不会把后端打穿。
+ * 设置了 refreshAfterWrite 的话，条目写入超过这个时间后第一次被读到时照常返回旧值，同时在后台重新加载一次。
+ * <p>
+ * 打开堆外层（setOffHeapTier）后，因为容量被淘汰的条目序列化到堆外的 slab 里，堆内未命中时再查堆外，
+ * 命中的条目放回堆内，大量冷数据不再留在老年代里。
+ * <p>
+ * saveSnapshot 把条目写进内存映射的快照文件，重启后 restoreSnapshot 只读键建索引，值在第一次被访问时才加载
+ * <p>
+ * 多个 Cache 挂在同一个 InvalidationBus 上时，后端存储的写入发布失效的键，每个 Cache 把键放进自己的无锁队列，
+ * 在下一次维护时成批移除，发布方不用等任何一个 Cache 的维护锁。
+ * <p>
+ * 打开 statsEnabled 后记录命中、未命中、加载和淘汰的次数，stats() 取一份快照，也可以注册成 MXBean
+ */
+public class Cache<K, V> {
 
-    public Object get(String key) {
-        readLock.lock();
+    private static final long DEFAULT_MAXIMUM_SIZE = 10_000L;
+
+    private static final long ORIGIN = System.nanoTime() - 1;
+
+    private static final int OFF_HEAP_SLAB_SIZE = 1 << 20;
+
+    private static final int INVALIDATION_STRIPES = 256;
+
+    // 条目所在的 LRU 段，NONE 表示还没加入或者已经移出淘汰策略
+    static final int NONE = -1;
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    private final NodeStore<K, V> data;
+
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final Weigher<? super K, ? super V> weigher;
+    // 按权重限制容量，这时条目数事先不知道，FrequencySketch 跟着条目数变大
+    private final boolean weighted;
+
+    // 淘汰策略的状态，只在持有 evictionLock 时访问
+    private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> protectedDeque = new AccessOrderDeque<>();
+    private final FrequencySketch sketch;
+    private long windowWeightedSize;
+    private long protectedWeightedSize;
+    private long weightedSize;
+    private final TimerWheel<K, V> timerWheel = new TimerWheel<>(ticks());
+
+    // 0 表示不过期
+    private volatile long expireAfterWriteNanos;
+    private volatile long expireAfterAccessNanos;
+
+    // 0 表示不刷新
+    private volatile long refreshAfterWriteNanos;
+    private volatile Function<? super K, ? extends V> reloader;
+    private volatile Executor refreshExecutor;
+
+    private volatile OffHeapStore<K, V> offHeap;
+
+    // 恢复出来还没被访问过的快照条目，全部取完后置为 null 释放映射
+    private volatile CacheSnapshot<K, V> restored;
+
+    // 正在加载的键，同一个键的并发未命中共用一个 future
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    // 按键的哈希分条记录失效次数，加载前后对比，加载期间被失效过的结果不留在缓存里；
+    // 不同的键落在同一条上最多多一次未命中
+    private final AtomicIntegerArray invalidationStamps = new AtomicIntegerArray(INVALIDATION_STRIPES);
+
+    private volatile boolean statsEnabled;
+    private final CacheStatsCounter stats = new CacheStatsCounter(this);
+
+    private final ReadBuffer<Node<K, V>> readBuffer = new ReadBuffer<>();
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    // InvalidationBus 发过来还没处理的键
+    private final ConcurrentLinkedQueue<K> invalidations = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    public Cache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * 最多保留 maximumSize 个条目，超过后按 W-TinyLFU 淘汰
+     */
+    public Cache(long maximumSize) {
+        this(maximumSize, ConcurrencyMode.CONCURRENT_HASH_MAP);
+    }
+
+    /**
+     * mode 决定条目放在哪种哈希表里，见 ConcurrencyMode；淘汰和过期的行为和模式无关
+     */
+    public Cache(long maximumSize, ConcurrencyMode mode) {
+        this(maximumSize, Weigher.singleton(), false, mode);
+    }
+
+    /**
+     * 所有条目的权重之和最多为 maximumWeight，权重由 weigher 计算，超过后按 W-TinyLFU 淘汰
+     */
+    public Cache(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        this(maximumWeight, weigher, ConcurrencyMode.CONCURRENT_HASH_MAP);
+    }
+
+    public Cache(long maximumWeight, Weigher<? super K, ? super V> weigher, ConcurrencyMode mode) {
+        this(maximumWeight, Objects.requireNonNull(weigher), true, mode);
+    }
+
+    private Cache(long maximum, Weigher<? super K, ? super V> weigher, boolean weighted, ConcurrencyMode mode) {
+        if (maximum <= 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.data = NodeStore.of(mode);
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1L, maximum / 100);
+        this.protectedMaximum = (maximum - windowMaximum) * 80 / 100;
+        this.weigher = weigher;
+        this.weighted = weighted;
+        this.sketch = new FrequencySketch(weighted ? 16L : maximum);
+    }
+
+    public V get(K key) {
+        V value = getIfPresent(key);
+        if (statsEnabled) {
+            (value == null ? stats.misses : stats.hits).increment();
+        }
+        return value;
+    }
+
+    private V getIfPresent(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return offHeap == null && restored == null ? null : promote(key);
+        }
+        V value = read(node);
+        if (value == null) {
+            // 过期了，让维护线程尽快把它移除
+            tryMaintenance();
+            return null;
+        }
+        afterRead(node);
+        return value;
+    }
+
+    /**
+     * 查到节点之后的处理：过期了返回 null，否则更新访问时间、需要的话触发刷新，返回值。不记录访问顺序
+     */
+    private V read(Node<K, V> node) {
+        V value = node.value;
+        if (expiresAfterWrite() || expiresAfterAccess() || refreshes()) {
+            long now = ticks();
+            if (hasExpired(node, now)) {
+                return null;
+            }
+            if (expiresAfterAccess()) {
+                node.accessTime = now;
+            }
+            if (refreshes() && now - node.writeTime >= refreshAfterWriteNanos) {
+                refresh(node);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 批量查找，返回命中的键和值，顺序和 keys 一致。整批只在存储上查一次（STAMPED_LOCK 一次乐观读，
+     * COPY_ON_WRITE 读同一个快照），访问记录都放进读缓冲后最多触发一次维护
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new LinkedHashMap<>();
+        int misses = getAllPresent(new ArrayList<>(new LinkedHashSet<>(keys)), result, null);
+        if (statsEnabled) {
+            stats.hits.add(result.size());
+            stats.misses.add(misses);
+        }
+        return result;
+    }
+
+    /**
+     * 批量查找，没命中的键一起交给 bulkLoader 加载一次，加载到的全部放进缓存（包括没有请求的键），
+     * 加载期间别的线程 put 过的键保留新值。返回请求的键里能找到的部分。
+     * 和单个键的 get(key, loader) 不同，批量加载不和其他线程的加载合并
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys,
+                            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        Map<K, V> result = new LinkedHashMap<>();
+        Set<K> missing = new LinkedHashSet<>();
+        int misses = getAllPresent(new ArrayList<>(new LinkedHashSet<>(keys)), result, missing);
+        if (statsEnabled) {
+            stats.hits.add(result.size());
+            stats.misses.add(misses);
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        // 加载结果可能包括没有请求的键，整个失效记录都拷一份
+        int[] stamps = new int[INVALIDATION_STRIPES];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = invalidationStamps.get(i);
+        }
+        Map<? extends K, ? extends V> loaded = loadAll(missing, bulkLoader);
+        if (loaded == null || loaded.isEmpty()) {
+            return result;
+        }
+        // 值为 null 的当作没加载到，不缓存
+        Map<K, V> present = new LinkedHashMap<>();
+        loaded.forEach((key, value) -> {
+            if (key != null && value != null) {
+                present.put(key, value);
+            }
+        });
+        Map<K, V> installed = installAllLoaded(present, stamps);
+        for (K key : missing) {
+            V value = installed.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 命中的放进 result，没命中的放进 missing（可以为 null），返回没命中的个数
+     */
+    private int getAllPresent(List<K> keys, Map<K, V> result, Set<K> missing) {
+        List<Node<K, V>> nodes = data.getAll(keys);
+        boolean drain = false;
+        int misses = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            K key = keys.get(i);
+            Node<K, V> node = nodes.get(i);
+            V value;
+            if (node == null) {
+                value = offHeap == null && restored == null ? null : promote(key);
+            } else {
+                value = read(node);
+                if (value == null) {
+                    drain = true;
+                } else if (readBuffer.offer(node) == ReadBuffer.FULL) {
+                    drain = true;
+                }
+            }
+            if (value == null) {
+                misses++;
+                if (missing != null) {
+                    missing.add(key);
+                }
+            } else {
+                result.put(key, value);
+            }
+        }
+        if (drain) {
+            tryMaintenance();
+        }
+        return misses;
+    }
+    public void put(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        int weight = weigh(key, value);
+        for (;;) {
+            Node<K, V> node = data.get(key);
+            long now = ticks();
+            if (node == null) {
+                node = new Node<>(key, value);
+                node.weight = weight;
+                node.writeTime = now;
+                node.accessTime = now;
+                Node<K, V> prior = data.putIfAbsent(key, node);
+                if (prior == null) {
+                    // 堆外和快照里可能还留着旧值
+                    dropSpilled(key);
+                    Node<K, V> added = node;
+                    afterWrite(() -> onAdd(added));
+                    return;
+                }
+                node = prior;
+            }
+            int oldWeight = update(node, value, weight, now);
+            // 已经被淘汰的条目不能再改，重新插一个
+            if (oldWeight < 0) {
+                continue;
+            }
+            if (weight != oldWeight) {
+                // 权重变了要改总数，不能丢，走写缓冲
+                Node<K, V> updated = node;
+                afterWrite(() -> onUpdate(updated));
+            } else {
+                // 覆盖已有的值只影响访问顺序，和读一样走有损的读缓冲
+                afterRead(node);
+            }
+            return;
+        }
+    }
+
+    /**
+     * 把加载结果放进缓存，返回调用方应该拿到的值。加载期间别的线程 put 了新值的话以新值为准，不覆盖；
+     * 只剩过期还没移除的节点当作没有。stamp 是加载开始前的失效次数，放进去之后发现期间被失效过就再移除
+     */
+    private V installLoaded(K key, V value, int stamp) {
+        int weight = weigh(key, value);
+        for (;;) {
+            Node<K, V> node = data.get(key);
+            long now = ticks();
+            if (node == null) {
+                node = new Node<>(key, value);
+                node.weight = weight;
+                node.writeTime = now;
+                node.accessTime = now;
+                Node<K, V> prior = data.putIfAbsent(key, node);
+                if (prior == null) {
+                    dropSpilled(key);
+                    Node<K, V> added = node;
+                    afterWrite(() -> onAdd(added));
+                    discardIfInvalidated(key, stamp);
+                    return value;
+                }
+                node = prior;
+            }
+            int oldWeight;
+            synchronized (node) {
+                if (node.dead) {
+                    continue;
+                }
+                if (!hasExpired(node, now)) {
+                    return node.value;
+                }
+                oldWeight = update(node, value, weight, now);
+            }
+            if (weight != oldWeight) {
+                Node<K, V> updated = node;
+                afterWrite(() -> onUpdate(updated));
+            } else {
+                afterRead(node);
+            }
+            discardIfInvalidated(key, stamp);
+            return value;
+        }
+    }
+
+    /**
+     * installLoaded 的批量版本，返回每个键最终的值。没有映射的键整批一次放进存储，对淘汰策略的改动合成一个任务；
+     * 加载期间已经有映射的键逐个走 installLoaded，不覆盖别的线程 put 的新值
+     */
+    private Map<K, V> installAllLoaded(Map<K, V> loaded, int[] stamps) {
+        Map<K, V> installed = new LinkedHashMap<>(loaded);
+        List<Node<K, V>> created = new ArrayList<>(loaded.size());
+        List<K> contended = new ArrayList<>();
+        long now = ticks();
+        loaded.forEach((key, value) -> {
+            if (data.get(key) != null) {
+                contended.add(key);
+                return;
+            }
+            Node<K, V> node = new Node<>(key, value);
+            node.weight = weigh(key, value);
+            node.writeTime = now;
+            node.accessTime = now;
+            created.add(node);
+        });
+        List<Node<K, V>> added = new ArrayList<>(created.size());
+        if (!created.isEmpty()) {
+            List<Node<K, V>> prior = data.putAllIfAbsent(created);
+            for (int i = 0; i < created.size(); i++) {
+                Node<K, V> node = created.get(i);
+                if (prior.get(i) == null) {
+                    dropSpilled(node.key);
+                    added.add(node);
+                } else {
+                    contended.add(node.key);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            afterWrite(() -> {
+                for (Node<K, V> node : added) {
+                    onAdd(node);
+                }
+            });
+            for (Node<K, V> node : added) {
+                discardIfInvalidated(node.key, stamps[stampIndex(node.key)]);
+            }
+        }
+        for (K key : contended) {
+            installed.put(key, installLoaded(key, loaded.get(key), stamps[stampIndex(key)]));
+        }
+        return installed;
+    }
+
+    /**
+     * 覆盖已有节点的值，返回原来的权重；节点已经被淘汰返回 -1
+     */
+    private int update(Node<K, V> node, V value, int weight, long now) {
+        synchronized (node) {
+            if (node.dead) {
+                return -1;
+            }
+            // 还没来得及移除的过期条目在这里复活，时间轮到时会重新检查
+            node.writeTime = now;
+            node.accessTime = now;
+            node.value = value;
+            int oldWeight = node.weight;
+            node.weight = weight;
+            return oldWeight;
+        }
+    }
+
+    /**
+     * 批量写入。已有的键直接覆盖；新的键整批一次放进存储（STAMPED_LOCK 只拿一次写锁，COPY_ON_WRITE 只复制一次表），
+     * 对淘汰策略的改动合成一个任务进写缓冲，整批最多触发一次维护
+     */
+    public void putAll(Map<? extends K, ? extends V> map) {
+        List<K> keys = new ArrayList<>(map.size());
+        for (K key : map.keySet()) {
+            keys.add(Objects.requireNonNull(key));
+        }
+        List<Node<K, V>> existing = data.getAll(keys);
+        List<Node<K, V>> created = new ArrayList<>();
+        List<Node<K, V>> reweighed = new ArrayList<>();
+        List<K> retry = new ArrayList<>();
+        boolean drain = false;
+        long now = ticks();
+        for (int i = 0; i < keys.size(); i++) {
+            K key = keys.get(i);
+            V value = Objects.requireNonNull(map.get(key));
+            int weight = weigh(key, value);
+            Node<K, V> node = existing.get(i);
+            if (node == null) {
+                node = new Node<>(key, value);
+                node.weight = weight;
+                node.writeTime = now;
+                node.accessTime = now;
+                created.add(node);
+                continue;
+            }
+            int oldWeight = update(node, value, weight, now);
+            if (oldWeight < 0) {
+                retry.add(key);
+            } else if (oldWeight != weight) {
+                reweighed.add(node);
+            } else if (readBuffer.offer(node) == ReadBuffer.FULL) {
+                drain = true;
+            }
+        }
+        List<Node<K, V>> added = new ArrayList<>(created.size());
+        if (!created.isEmpty()) {
+            List<Node<K, V>> prior = data.putAllIfAbsent(created);
+            for (int i = 0; i < created.size(); i++) {
+                Node<K, V> node = created.get(i);
+                if (prior.get(i) == null) {
+                    dropSpilled(node.key);
+                    added.add(node);
+                } else {
+                    // 查找之后被别的线程抢先放进去了
+                    retry.add(node.key);
+                }
+            }
+        }
+        if (!added.isEmpty() || !reweighed.isEmpty()) {
+            afterWrite(() -> {
+                for (Node<K, V> node : added) {
+                    onAdd(node);
+                }
+                for (Node<K, V> node : reweighed) {
+                    onUpdate(node);
+                }
+            });
+        } else if (drain) {
+            tryMaintenance();
+        }
+        for (K key : retry) {
+            put(key, map.get(key));
+        }
+    }
+
+    /**
+     * 取不到就用 loader 加载并放进缓存。同一个键同时只有一个调用方执行 loader，其他调用方阻塞等它的结果，
+     * loader 抛出的异常也一起收到；loader 返回 null 时不缓存，直接返回 null。加载期间别的线程 put 了新值的话不覆盖，返回新值
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return join(inFlight);
+        }
         try {
-            return cacheMap.get(key);
+            // 抢到加载权之前上一次加载可能刚刚完成
+            value = getIfPresent(key);
+            if (value == null) {
+                int stamp = invalidationStamps.get(stampIndex(key));
+                value = load(key, loader);
+                if (value != null) {
+                    value = installLoaded(key, value, stamp);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
         } finally {
-            readLock.unlock();
+            loading.remove(key, future);
         }
     }
 
-    public void put(String key, Object o) {
-        writeLock.lock();
+    /**
+     * 异步版本，loader 在 ForkJoinPool.commonPool 里执行
+     */
+    public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends V> loader) {
+        return getAsync(key, loader, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 命中时返回已完成的 future；未命中时在 executor 里执行 loader，同一个键的并发请求（包括同步的 get）
+     * 拿到的是同一个 future。加载成功后先放进缓存再完成 future，加载期间别的线程 put 了新值的话 future 拿到的是新值
+     */
+    public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends V> loader, Executor executor) {
+        V value = get(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return inFlight;
+        }
         try {
-            cacheMap.put(key, o);
-        } finally {
-            writeLock.unlock();
+            executor.execute(() -> {
+                try {
+                    V loaded = getIfPresent(key);
+                    if (loaded == null) {
+                        int stamp = invalidationStamps.get(stampIndex(key));
+                        loaded = load(key, loader);
+                        if (loaded != null) {
+                            loaded = installLoaded(key, loaded, stamp);
+                        }
+                    }
+                    future.complete(loaded);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    loading.remove(key, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor 拒绝了任务
+            loading.remove(key, future);
+            future.completeExceptionally(e);
         }
+        return future;
+    }
+
+    /**
+     * 立即移除一个键，堆外层和恢复的快照里的副本也一起删掉。在这之前开始、之后才完成的加载，
+     * 结果会返回给调用方，但不会留在缓存里
+     */
+    public void invalidate(K key) {
+        // 堆外和快照里的副本要在增加失效次数之前删掉，见 promote
+        dropSpilled(key);
+        invalidationStamps.incrementAndGet(stampIndex(key));
+        discard(key);
     }
 
     public void clear() {
-        writeLock.lock();
+        restored = null;
+        OffHeapStore<K, V> spilled = offHeap;
+        if (spilled != null) {
+            spilled.clear();
+        }
+        for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+            invalidationStamps.incrementAndGet(i);
+        }
+        evictionLock.lock();
+        try {
+            maintenance();
+            // 清空之前已经拿到节点的 put 可能还会改一次值，等同于发生在 clear 之前
+            for (Node<K, V> node : data.clear()) {
+                node.dead = true;
+            }
+            window.clear();
+            probation.clear();
+            protectedDeque.clear();
+            timerWheel.clear();
+            OffHeapStore<K, V> tier = offHeap;
+            if (tier != null) {
+                tier.clear();
+            }
+            restored = null;
+            windowWeightedSize = 0L;
+            protectedWeightedSize = 0L;
+            weightedSize = 0L;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 立即执行一次维护：应用缓冲的读写、淘汰超出容量的条目、移除已经过期的条目。
+     * 平时维护只在读写时顺带进行，长时间没有访问时过期的条目会一直占着内存，可以定期调用这个方法
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getExpireAfterWrite(TimeUnit unit) {
+        return unit.convert(expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 写入（包括覆盖）超过 duration 后过期，0 表示不按写入时间过期。对已有的条目也立即生效
+     */
+    public void setExpireAfterWrite(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        evictionLock.lock();
+        try {
+            expireAfterWriteNanos = unit.toNanos(duration);
+            rescheduleAll();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getExpireAfterAccess(TimeUnit unit) {
+        return unit.convert(expireAfterAccessNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 超过 duration 没有被读写就过期，0 表示不按访问时间过期。打开后每次读要多取一次时间
+     */
+    public void setExpireAfterAccess(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        evictionLock.lock();
+        try {
+            expireAfterAccessNanos = unit.toNanos(duration);
+            rescheduleAll();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getRefreshAfterWrite(TimeUnit unit) {
+        return unit.convert(refreshAfterWriteNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 写入超过 duration 的条目被读到时，读照常返回旧值，同时在 refreshExecutor 里调用 reloader 重新加载，
+     * 同一个条目同时只有一次重新加载。加载失败、返回 null 或者加载期间条目被覆盖了都保留原来的值。
+     * duration 为 0 表示关闭。一般比 expireAfterWrite 短，过期的条目不会再返回旧值
+     */
+    public void setRefreshAfterWrite(long duration, TimeUnit unit, Function<? super K, ? extends V> reloader) {
+        if (duration < 0 || (duration > 0 && reloader == null)) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.reloader = reloader;
+        this.refreshAfterWriteNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * 执行重新加载的线程池，默认是一个最多 4 个线程、排队 1024 个任务的有界线程池；
+     * 线程池拒绝时这次就不刷新，下次读到再试
+     */
+    public synchronized void setRefreshExecutor(Executor executor) {
+        this.refreshExecutor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * 打开堆外层，最多使用 capacityBytes 字节的直接内存，值用 serializer 序列化；
+     * 单个序列化后超过 1MB 的值不溢出。capacityBytes 为 0 表示关闭并释放堆外的条目
+     */
+    public synchronized void setOffHeapTier(long capacityBytes, Serializer<V> serializer) {
+        if (capacityBytes < 0 || (capacityBytes > 0 && capacityBytes < SlabAllocator.MIN_CHUNK)) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        OffHeapStore<K, V> old = offHeap;
+        if (capacityBytes == 0) {
+            offHeap = null;
+        } else {
+            int slabSize = Integer.highestOneBit((int) Math.min(capacityBytes, OFF_HEAP_SLAB_SIZE));
+            offHeap = new OffHeapStore<>(capacityBytes, slabSize, Objects.requireNonNull(serializer));
+        }
+        if (old != null) {
+            old.clear();
+        }
+    }
+
+    /**
+     * 堆外层里的条目数
+     */
+    public int getOffHeapSize() {
+        OffHeapStore<K, V> tier = offHeap;
+        return tier == null ? 0 : tier.size();
+    }
+
+    /**
+     * 堆外层已经申请的直接内存字节数
+     */
+    public long getOffHeapBytes() {
+        OffHeapStore<K, V> tier = offHeap;
+        return tier == null ? 0L : tier.allocatedBytes();
+    }
+
+    /**
+     * 把堆内的条目写进快照文件，返回写入的条目数。写的时候不挡读写，拿到的是一个弱一致的视图；
+     * 堆外层的条目不写。写入时间按"写入了多久"保存，恢复后过期和刷新的时间接着算
+     */
+    public int saveSnapshot(Path file, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        List<Node<K, V>> nodes = new ArrayList<>();
+        data.forEach(nodes::add);
+        return CacheSnapshot.write(file, nodes, ticks(), keySerializer, valueSerializer);
+    }
+
+    /**
+     * 映射快照文件并读出所有的键，返回条目数；值在第一次 get 未命中时才从映射里反序列化放回堆内。
+     * 已经在堆内的键以堆内为准。再次恢复会替换上一次还没取完的快照。恢复完成之后的失效会作用到快照里的条目，
+     * 和恢复同时进行的失效不保证
+     */
+    public int restoreSnapshot(Path file, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        CacheSnapshot<K, V> snapshot = CacheSnapshot.open(file, ticks(), keySerializer, valueSerializer);
+        data.forEach(node -> snapshot.remove(node.key));
+        restored = snapshot.isEmpty() ? null : snapshot;
+        return snapshot.size();
+    }
+
+    /**
+     * 恢复的快照里还没被访问过的条目数
+     */
+    public int getRestorePendingSize() {
+        CacheSnapshot<K, V> snapshot = restored;
+        return snapshot == null ? 0 : snapshot.size();
+    }
+
+    public boolean isStatsEnabled() {
+        return statsEnabled;
+    }
+
+    /**
+     * 打开后记录命中、未命中、加载耗时和淘汰次数，关掉时读写路径上只多读一个 volatile。
+     * 关掉再打开时之前的计数保留，需要的话调用 MXBean 的 resetStats
+     */
+    public void setStatsEnabled(boolean enabled) {
+        this.statsEnabled = enabled;
+    }
+
+    /**
+     * 统计的快照，只是把每个 LongAdder 求一次和，可以频繁调用
+     */
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    public CacheMXBean getMXBean() {
+        return stats;
+    }
+
+    /**
+     * 把统计注册到平台 MBeanServer，ObjectName 为 chapter5:type=Cache,name=cacheName
+     */
+    public ObjectName registerMBean(String cacheName) throws JMException {
+        ObjectName objectName = new ObjectName("chapter5:type=Cache,name=" + cacheName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+        return objectName;
+    }
+
+    /**
+     * 当前条目数，可能暂时超过上限，等维护线程淘汰
+     */
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * 已经计入淘汰策略的权重之和，没有传 Weigher 时等于条目数；写缓冲里还没应用的写入不算在内
+     */
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return weightedSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void afterRead(Node<K, V> node) {
+        if (readBuffer.offer(node) == ReadBuffer.FULL) {
+            tryMaintenance();
+        }
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.offer(task);
+        tryMaintenance();
+    }
+
+    /**
+     * 抢不到维护锁就走，持有锁的线程解锁后会再看一眼写缓冲，不会漏掉这次写入
+     */
+    private void tryMaintenance() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty() || !invalidations.isEmpty());
+    }
+
+    /**
+     * InvalidationBus 调用，只入队，能抢到维护锁就顺便处理掉，抢不到由持有锁的线程处理
+     */
+    void enqueueInvalidations(Collection<? extends K> keys) {
+        invalidations.addAll(keys);
+        tryMaintenance();
+    }
+
+    // 调用方持有 evictionLock
+    private void maintenance() {
+        readBuffer.drainTo(this::onAccess);
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+        applyInvalidations();
+        expireEntries();
+        evictEntries();
+    }
+
+    private void applyInvalidations() {
+        K key;
+        while ((key = invalidations.poll()) != null) {
+            dropSpilled(key);
+            invalidationStamps.incrementAndGet(stampIndex(key));
+            Node<K, V> node = data.get(key);
+            if (node != null && markRemoved(node)) {
+                onRemove(node);
+            }
+        }
+    }
+
+    private void expireEntries() {
+        if (expiresAfterWrite() || expiresAfterAccess()) {
+            long now = ticks();
+            timerWheel.advance(now, node -> expire(node, now));
+        }
+    }
+
+    // 调用方持有 evictionLock，过期时间改了之后所有条目按新的设置重新挂到时间轮上
+    private void rescheduleAll() {
+        maintenance();
+        data.forEach(node -> {
+            if (node.queueType != NONE && !node.dead) {
+                schedule(node);
+            }
+        });
+    }
+
+    private void schedule(Node<K, V> node) {
+        if (expiresAfterWrite() || expiresAfterAccess()) {
+            node.expiresAt = expiresAt(node);
+            timerWheel.schedule(node);
+        } else {
+            timerWheel.deschedule(node);
+        }
+    }
+
+    private void onAdd(Node<K, V> node) {
+        if (node.dead) {
+            return;
+        }
+        if (weighted) {
+            sketch.ensureCapacity(data.size());
+        }
+        sketch.increment(node.key);
+        // 权重取最新的，put 在这之前改过的话后面的 onUpdate 算出来的差是 0
+        int weight = node.weight;
+        node.policyWeight = weight;
+        node.queueType = WINDOW;
+        window.addLast(node);
+        windowWeightedSize += weight;
+        weightedSize += weight;
+        schedule(node);
+    }
+
+    /**
+     * 覆盖后权重变了，按节点上的新权重调整所在段和总的权重，再当作一次访问
+     */
+    private void onUpdate(Node<K, V> node) {
+        // 还没执行 onAdd 的节点等 onAdd 读最新的权重
+        if (node.dead || node.queueType == NONE) {
+            return;
+        }
+        int weight = node.weight;
+        int delta = weight - node.policyWeight;
+        node.policyWeight = weight;
+        weightedSize += delta;
+        if (node.queueType == WINDOW) {
+            windowWeightedSize += delta;
+        } else if (node.queueType == PROTECTED) {
+            protectedWeightedSize += delta;
+        }
+        onAccess(node);
+        demoteProtected();
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.dead) {
+            return;
+        }
+        sketch.increment(node.key);
+        switch (node.queueType) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                // 试用区里再次被访问，升进保护区，保护区满了就把最老的降回试用区
+                probation.remove(node);
+                node.queueType = PROTECTED;
+                protectedDeque.addLast(node);
+                protectedWeightedSize += node.policyWeight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                protectedDeque.moveToBack(node);
+                break;
+            default:
+                // 写缓冲里的 onAdd 还没执行
+                return;
+        }
+        if (expiresAfterAccess()) {
+            schedule(node);
+        }
+    }
+
+    private void demoteProtected() {
+        while (protectedWeightedSize > protectedMaximum) {
+            Node<K, V> demoted = protectedDeque.pollFirst();
+            protectedWeightedSize -= demoted.policyWeight;
+            demoted.queueType = PROBATION;
+            probation.addLast(demoted);
+        }
+    }
+
+    private void evictEntries() {
+        // 窗口里最老的条目移到试用区队尾，成为准入的候选者
+        while (windowWeightedSize > windowMaximum) {
+            Node<K, V> node = window.pollFirst();
+            windowWeightedSize -= node.policyWeight;
+            node.queueType = PROBATION;
+            probation.addLast(node);
+        }
+        // 比整个容量还重的条目作为候选者总会输，进来后马上被淘汰
+        while (weightedSize > maximum) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == null) {
+                victim = protectedDeque.peekFirst() != null ? protectedDeque.peekFirst() : window.peekFirst();
+                evict(victim);
+                continue;
+            }
+            Node<K, V> candidate = probation.peekLast();
+            // 频率相同时留下老的，偶尔访问一次的新条目挤不走热点
+            if (candidate != victim && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        boolean invalidated;
+        synchronized (node) {
+            // 已经被 invalidate 移出哈希表、onRemove 还没执行，只需要移出淘汰策略，不算淘汰也不溢出旧值
+            invalidated = node.dead;
+            data.remove(node.key, node);
+            node.dead = true;
+        }
+        removeFromPolicy(node);
+        if (invalidated) {
+            return;
+        }
+        if (statsEnabled) {
+            stats.recordEviction(node.policyWeight);
+        }
+        spill(node);
+    }
+
+    /**
+     * 被容量淘汰的条目放进堆外层。溢出的同时如果有线程重新 put 了这个键，堆内的才是新值，把刚放进去的删掉
+     */
+    private void spill(Node<K, V> node) {
+        OffHeapStore<K, V> tier = offHeap;
+        if (tier != null && tier.put(node.key, node.value, node.writeTime) && data.get(node.key) != null) {
+            tier.remove(node.key);
+        }
+    }
+
+    /**
+     * 堆内未命中时从堆外或者恢复的快照里取出放回堆内，已经按写入时间过期的直接丢掉。
+     * 和加载一样在取出之前记下失效次数，放回之后次数变了就移除。失效的一方先删掉堆外和快照里的副本再增加次数，
+     * 所以能取到的值，它的失效一定发生在记下次数之后，放回之后会被这里发现，或者被失效的一方从堆内移除
+     */
+    private V promote(K key) {
+        int stamp = invalidationStamps.get(stampIndex(key));
+        OffHeapStore<K, V> tier = offHeap;
+        Node<K, V> spilled = tier == null ? null : tier.take(key);
+        CacheSnapshot<K, V> snapshot = restored;
+        if (spilled == null && snapshot != null) {
+            spilled = snapshot.take(key);
+            if (snapshot.isEmpty()) {
+                restored = null;
+            }
+        }
+        if (spilled == null) {
+            // 可能被另一个线程刚刚提升回去
+            Node<K, V> node = data.get(key);
+            return node == null ? null : node.value;
+        }
+        long now = ticks();
+        spilled.accessTime = now;
+        if (hasExpired(spilled, now)) {
+            return null;
+        }
+        spilled.weight = weigh(key, spilled.value);
+        // 保留原来的写入时间，已经有线程 put 了新值的话以新值为准
+        Node<K, V> prior = data.putIfAbsent(key, spilled);
+        if (prior != null) {
+            return prior.value;
+        }
+        Node<K, V> promoted = spilled;
+        afterWrite(() -> onAdd(promoted));
+        discardIfInvalidated(key, stamp);
+        return promoted.value;
+    }
+
+    /**
+     * 时间轮到期时调用，在节点锁里再判断一次，刚被 put 复活的条目不移除
+     */
+    private boolean expire(Node<K, V> node, long now) {
+        synchronized (node) {
+            if (node.dead) {
+                return true;
+            }
+            if (!hasExpired(node, now)) {
+                node.expiresAt = expiresAt(node);
+                return false;
+            }
+            data.remove(node.key, node);
+            node.dead = true;
+        }
+        removeFromPolicy(node);
+        if (statsEnabled) {
+            stats.recordEviction(node.policyWeight);
+        }
+        return true;
+    }
+
+    /**
+     * 从哈希表里删掉并标记为 dead，已经被删掉的返回 false
+     */
+    private boolean markRemoved(Node<K, V> node) {
+        synchronized (node) {
+            if (node.dead) {
+                return false;
+            }
+            data.remove(node.key, node);
+            node.dead = true;
+            return true;
+        }
+    }
+
+    private void discard(K key) {
+        Node<K, V> node = data.get(key);
+        if (node != null && markRemoved(node)) {
+            afterWrite(() -> onRemove(node));
+        }
+        dropSpilled(key);
+    }
+
+    /**
+     * 加载结果放进缓存之后调用，stamp 是加载开始前这个键所在分条的失效次数，变了就把刚放进去的移除。
+     * 失效的一方先增加次数再移除节点，两边怎么交错旧值都不会留下
+     */
+    private void discardIfInvalidated(K key, int stamp) {
+        if (invalidationStamps.get(stampIndex(key)) != stamp) {
+            discard(key);
+        }
+    }
+
+    private static int stampIndex(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    // 还没执行 onAdd 的节点不用管，onAdd 看到 dead 会跳过；已经被 clear 断开的节点 queueType 也是 NONE
+    private void onRemove(Node<K, V> node) {
+        removeFromPolicy(node);
+    }
+
+    private void dropSpilled(K key) {
+        OffHeapStore<K, V> tier = offHeap;
+        if (tier != null) {
+            tier.remove(key);
+        }
+        CacheSnapshot<K, V> snapshot = restored;
+        if (snapshot != null) {
+            snapshot.remove(key);
+        }
+    }
+
+    private void removeFromPolicy(Node<K, V> node) {
+        if (node.queueType == NONE) {
+            return;
+        }
+        timerWheel.deschedule(node);
+        switch (node.queueType) {
+            case WINDOW:
+                window.remove(node);
+                windowWeightedSize -= node.policyWeight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedDeque.remove(node);
+                protectedWeightedSize -= node.policyWeight;
+                break;
+        }
+        weightedSize -= node.policyWeight;
+        node.queueType = NONE;
+    }
+
+    /**
+     * 调用 loader，打开统计时记录耗时；返回 null 和抛异常都算加载失败
+     */
+    private V load(K key, Function<? super K, ? extends V> loader) {
+        if (!statsEnabled) {
+            return loader.apply(key);
+        }
+        long start = System.nanoTime();
+        V value = null;
         try {
-            cacheMap.clear();
+            value = loader.apply(key);
+            return value;
         } finally {
-            writeLock.unlock();
+            stats.recordLoad(value != null, System.nanoTime() - start);
+        }
+    }
+
+    private Map<? extends K, ? extends V> loadAll(Set<K> keys,
+            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        if (!statsEnabled) {
+            return bulkLoader.apply(keys);
+        }
+        long start = System.nanoTime();
+        Map<? extends K, ? extends V> loaded = null;
+        try {
+            loaded = bulkLoader.apply(keys);
+            return loaded;
+        } finally {
+            stats.recordLoad(loaded != null, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 等另一个调用方的加载结果，把它的异常原样抛出来
+     */
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private void refresh(Node<K, V> node) {
+        if (!REFRESHING.compareAndSet(node, 0, 1)) {
+            return;
+        }
+        Function<? super K, ? extends V> loader = reloader;
+        // 用写入时间判断重新加载期间有没有被覆盖过，被失效过的节点已经 dead，也不会再写
+        long writeTime = node.writeTime;
+        try {
+            refreshExecutor().execute(() -> {
+                try {
+                    V value = load(node.key, loader);
+                    if (value != null) {
+                        int weight = weigh(node.key, value);
+                        boolean reweighed = false;
+                        synchronized (node) {
+                            if (!node.dead && node.writeTime == writeTime) {
+                                node.writeTime = ticks();
+                                node.value = value;
+                                reweighed = node.weight != weight;
+                                node.weight = weight;
+                            }
+                        }
+                        if (reweighed) {
+                            afterWrite(() -> onUpdate(node));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // 保留旧值
+                    e.printStackTrace();
+                } finally {
+                    node.refreshing = 0;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            node.refreshing = 0;
+        }
+    }
+
+    private synchronized Executor refreshExecutor() {
+        if (refreshExecutor == null) {
+            int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(1024), r -> {
+                        Thread thread = new Thread(r, "Cache-refresher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            refreshExecutor = executor;
+        }
+        return refreshExecutor;
+    }
+
+    private int weigh(K key, V value) {
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        return weight;
+    }
+
+    private boolean refreshes() {
+        return refreshAfterWriteNanos > 0L;
+    }
+
+    private boolean expiresAfterWrite() {
+        return expireAfterWriteNanos > 0L;
+    }
+
+    private boolean expiresAfterAccess() {
+        return expireAfterAccessNanos > 0L;
+    }
+
+    private boolean hasExpired(Node<K, V> node, long now) {
+        return (expiresAfterWrite() && now - node.writeTime >= expireAfterWriteNanos)
+                || (expiresAfterAccess() && now - node.accessTime >= expireAfterAccessNanos);
+    }
+
+    private long expiresAt(Node<K, V> node) {
+        long expiresAt = Long.MAX_VALUE;
+        if (expiresAfterWrite()) {
+            expiresAt = node.writeTime + expireAfterWriteNanos;
+        }
+        if (expiresAfterAccess()) {
+            expiresAt = Math.min(expiresAt, node.accessTime + expireAfterAccessNanos);
+        }
+        return expiresAt;
+    }
+
+    /**
+     * 相对于类加载时刻的纳秒数，总是正数
+     */
+    private static long ticks() {
+        return System.nanoTime() - ORIGIN;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> REFRESHING =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+    static final class Node<K, V> {
+        final K key;
+        volatile V value;
+
+        // 最近一次写入和访问的时间（ticks），写入时持有节点自己的锁
+        volatile long writeTime;
+        volatile long accessTime;
+
+        // 被淘汰或清空后置为 true，之后的 put 会换一个新节点；修改时持有节点自己的锁
+        volatile boolean dead;
+
+        // 1 表示正在后台重新加载，用 REFRESHING 做 CAS，条目很多时比每个节点一个 AtomicBoolean 省内存
+        volatile int refreshing;
+
+        // Weigher 算出来的权重，写入时持有节点自己的锁
+        volatile int weight;
+
+        // 以下字段只在持有维护锁时访问
+        int queueType = NONE;
+        // 计入淘汰策略的权重，和 weight 不同说明还有 onUpdate 没执行
+        int policyWeight;
+        Node<K, V> prev;
+        Node<K, V> next;
+        // 挂在时间轮上时的到期时间和前后节点
+        long expiresAt;
+        Node<K, V> prevInTimer;
+        Node<K, V> nextInTimer;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * 侵入式的双向链表，节点自己带 prev/next，移动位置不分配对象
+     */
+    static final class AccessOrderDeque<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+
+        Node<K, V> peekFirst() {
+            return first;
+        }
+
+        Node<K, V> peekLast() {
+            return last;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void remove(Node<K, V> node) {
+            Node<K, V> prev = node.prev;
+            Node<K, V> next = node.next;
+            if (prev == null) {
+                first = next;
+            } else {
+                prev.next = next;
+            }
+            if (next == null) {
+                last = prev;
+            } else {
+                next.prev = prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        /**
+         * 断开每个节点并把 queueType 置为 NONE，清空之后才执行的 onRemove 看到 NONE 就不会再按旧指针摘链、重复扣权重
+         */
+        void clear() {
+            Node<K, V> node = first;
+            while (node != null) {
+                Node<K, V> next = node.next;
+                node.prev = null;
+                node.next = null;
+                node.queueType = NONE;
+                node = next;
+            }
+            first = null;
+            last = null;
         }
     }
 }
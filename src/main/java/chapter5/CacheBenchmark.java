@@ -0,0 +1,126 @@
+package chapter5;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对比原来的读写锁缓存和 Cache 的三种 ConcurrencyMode：1/8/32/64 个线程，读写比 100:0、90:10、50:50，
+ * 键的数量小于容量，测的是查找和写入本身，不涉及淘汰。每个组合跑 seconds 秒，输出每秒操作数
+ * 用法：CacheBenchmark [seconds] [keys]
+ */
+public class CacheBenchmark {
+
+    private static final int[] THREADS = {1, 8, 32, 64};
+    private static final int[] READ_PERCENT = {100, 90, 50};
+
+    interface Target {
+        Object get(String key);
+
+        void put(String key, Object value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key-" + i;
+        }
+
+        System.out.printf("%-20s %8s %6s %14s%n", "impl", "threads", "read%", "ops/s");
+        // 第一轮当预热
+        for (int round = 0; round < 2; round++) {
+            for (int threads : THREADS) {
+                for (int readPercent : READ_PERCENT) {
+                    ReadWriteLockCache rw = new ReadWriteLockCache();
+                    rw.clear();
+                    report(round, "ReadWriteLockCache", threads, readPercent,
+                            run(new Target() {
+                                @Override
+                                public Object get(String key) {
+                                    return rw.get(key);
+                                }
+
+                                @Override
+                                public void put(String key, Object value) {
+                                    rw.put(key, value);
+                                }
+                            }, keys, threads, readPercent, seconds));
+                    for (ConcurrencyMode mode : ConcurrencyMode.values()) {
+                        Cache<String, Object> cache = new Cache<>(keyCount * 2L, mode);
+                        report(round, mode.name(), threads, readPercent,
+                                run(new Target() {
+                                    @Override
+                                    public Object get(String key) {
+                                        return cache.get(key);
+                                    }
+
+                                    @Override
+                                    public void put(String key, Object value) {
+                                        cache.put(key, value);
+                                    }
+                                }, keys, threads, readPercent, seconds));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void report(int round, String name, int threads, int readPercent, long opsPerSecond) {
+        if (round == 1) {
+            System.out.printf("%-20s %8d %6d %14d%n", name, threads, readPercent, opsPerSecond);
+        }
+    }
+
+    static long run(Target target, String[] keys, int threads, int readPercent, int seconds)
+            throws InterruptedException {
+        for (String key : keys) {
+            target.put(key, key);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        LongAdder ops = new LongAdder();
+        // 读到的结果要用上，防止 JIT 把读当成无用代码消掉
+        LongAdder misses = new LongAdder();
+        long[] stopAt = new long[1];
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    long count = 0;
+                    long missed = 0;
+                    while (System.nanoTime() < stopAt[0]) {
+                        // 每次检查时间之间做一小批，减少 nanoTime 的影响
+                        for (int j = 0; j < 64; j++) {
+                            String key = keys[random.nextInt(keys.length)];
+                            if (random.nextInt(100) < readPercent) {
+                                if (target.get(key) == null) {
+                                    missed++;
+                                }
+                            } else {
+                                target.put(key, key);
+                            }
+                        }
+                        count += 64;
+                    }
+                    ops.add(count);
+                    misses.add(missed);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    end.countDown();
+                }
+            }, "BenchmarkThread-" + i).start();
+        }
+        stopAt[0] = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        end.await();
+        if (misses.sum() > 0) {
+            System.out.println("unexpected misses: " + misses.sum());
+        }
+        return ops.sum() / seconds;
+    }
+}
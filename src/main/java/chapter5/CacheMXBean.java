@@ -0,0 +1,33 @@
+package chapter5;
+
+/**
+ * Cache 的统计指标，加载时间单位是纳秒。计数只在 StatsEnabled 打开时记录
+ */
+public interface CacheMXBean {
+
+    public boolean isStatsEnabled();
+
+    public void setStatsEnabled(boolean enabled);
+
+    public long getEstimatedSize();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public double getHitRate();
+
+    public long getLoadSuccessCount();
+
+    public long getLoadFailureCount();
+
+    public long getTotalLoadTime();
+
+    public double getAverageLoadPenalty();
+
+    public long getEvictionCount();
+
+    public long getEvictionWeight();
+
+    public void resetStats();
+}
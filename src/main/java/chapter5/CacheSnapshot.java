@@ -0,0 +1,223 @@
+package chapter5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache 的快照文件。格式是 [int 魔数][int 条目数]，后面每个条目
+ * [int 键长度][键][long 写入了多久（纳秒）][int 值长度][值]，整数都是大端。
+ * 写入和读取都通过内存映射完成，文件超过 2GB 时分段映射。
+ * <p>
+ * 恢复时只顺序扫一遍键建立索引（键到值在文件里的位置），值在第一次被访问时才反序列化，
+ * 所以打开一个很大的快照只需要读键的时间
+ */
+final class CacheSnapshot<K, V> {
+
+    static final int MAGIC = 0x43534e31;
+
+    private static final long REGION = 1L << 30;
+    private static final int WRITE_WINDOW = 64 << 20;
+
+    private final MappedByteBuffer[] regions;
+    private final Serializer<V> valueSerializer;
+    // 还没被取走的键，值是"写入了多久"字段在文件里的位置
+    private final ConcurrentHashMap<K, Long> index = new ConcurrentHashMap<>();
+    // 打开快照时的 Cache 时间，用来把"写入了多久"换算回写入时间
+    private final long openedAt;
+
+    private CacheSnapshot(MappedByteBuffer[] regions, Serializer<V> valueSerializer, long openedAt) {
+        this.regions = regions;
+        this.valueSerializer = valueSerializer;
+        this.openedAt = openedAt;
+    }
+
+    /**
+     * 先写到同目录的临时文件，写完再原子替换，写到一半崩溃不会留下损坏的快照
+     */
+    static <K, V> int write(Path file, Iterable<Cache.Node<K, V>> nodes, long now,
+                            Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Writer writer = new Writer(channel);
+            writer.putInt(MAGIC);
+            writer.putInt(0);
+            for (Cache.Node<K, V> node : nodes) {
+                V value = node.value;
+                if (node.dead || value == null) {
+                    continue;
+                }
+                byte[] key = keySerializer.serialize(node.key);
+                byte[] bytes = valueSerializer.serialize(value);
+                writer.putInt(key.length);
+                writer.put(key);
+                writer.putLong(Math.max(0L, now - node.writeTime));
+                writer.putInt(bytes.length);
+                writer.put(bytes);
+                count++;
+            }
+            writer.finish();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(0, count);
+            channel.write(header, 4);
+            channel.truncate(writer.position);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    static <K, V> CacheSnapshot<K, V> open(Path file, long now, Serializer<K> keySerializer,
+                                           Serializer<V> valueSerializer) throws IOException {
+        MappedByteBuffer[] regions;
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            regions = new MappedByteBuffer[(int) ((size + REGION - 1) / REGION)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * REGION;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION, size - start));
+            }
+        }
+        CacheSnapshot<K, V> snapshot = new CacheSnapshot<>(regions, valueSerializer, now);
+        if (size < 8 || snapshot.getInt(0) != MAGIC) {
+            throw new IOException("not a cache snapshot: " + file);
+        }
+        int count = snapshot.getInt(4);
+        long position = 8;
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[snapshot.getInt(position)];
+            snapshot.read(position + 4, key);
+            position += 4 + key.length;
+            snapshot.index.put(keySerializer.deserialize(key), position);
+            position += 8;
+            position += 4 + snapshot.getInt(position);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 取出一个条目并从索引里删掉，返回还没放进 Cache 的节点；不存在或已经被取走返回 null
+     */
+    Cache.Node<K, V> take(K key) {
+        Long position = index.remove(key);
+        if (position == null) {
+            return null;
+        }
+        long age = getLong(position);
+        byte[] bytes = new byte[getInt(position + 8)];
+        read(position + 12, bytes);
+        Cache.Node<K, V> node = new Cache.Node<>(key, valueSerializer.deserialize(bytes));
+        node.writeTime = openedAt - age;
+        return node;
+    }
+
+    /**
+     * 堆内已经有了新值，快照里的旧值不再需要
+     */
+    void remove(K key) {
+        index.remove(key);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    private int getInt(long position) {
+        MappedByteBuffer region = regions[(int) (position / REGION)];
+        int offset = (int) (position % REGION);
+        // 绝对位置的读不改缓冲的状态，多线程读是安全的
+        if (offset + 4 <= region.limit()) {
+            return region.getInt(offset);
+        }
+        byte[] bytes = new byte[4];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private long getLong(long position) {
+        MappedByteBuffer region = regions[(int) (position / REGION)];
+        int offset = (int) (position % REGION);
+        if (offset + 8 <= region.limit()) {
+            return region.getLong(offset);
+        }
+        byte[] bytes = new byte[8];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * 从文件的 position 处读满 dst，可能跨两段映射；用 duplicate 读，不改共享缓冲的位置
+     */
+    private void read(long position, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            ByteBuffer region = regions[(int) (position / REGION)].duplicate();
+            region.position((int) (position % REGION));
+            int n = Math.min(dst.length - done, region.remaining());
+            region.get(dst, done, n);
+            done += n;
+            position += n;
+        }
+    }
+
+    /**
+     * 按 64MB 的窗口依次映射文件往后写，映射超出文件末尾时文件自动变长，写完由调用方截断
+     */
+    static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer scratch = ByteBuffer.allocate(8);
+        private MappedByteBuffer window;
+        long position;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            scratch.putInt(0, value);
+            put(scratch.array(), 4);
+        }
+
+        void putLong(long value) throws IOException {
+            scratch.putLong(0, value);
+            put(scratch.array(), 8);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            put(bytes, bytes.length);
+        }
+
+        private void put(byte[] bytes, int length) throws IOException {
+            int done = 0;
+            while (done < length) {
+                if (window == null || !window.hasRemaining()) {
+                    finish();
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, position, WRITE_WINDOW);
+                }
+                int n = Math.min(length - done, window.remaining());
+                window.put(bytes, done, n);
+                done += n;
+                position += n;
+            }
+        }
+
+        void finish() {
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package chapter5;
+
+/**
+ * Cache 统计的一份快照，不可变。各个计数分别读取，相互之间不保证是同一时刻的值
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+    private final long evictionWeight;
+
+    public CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+                      long totalLoadTime, long evictionCount, long evictionWeight) {
+        if (hitCount < 0 || missCount < 0 || loadSuccessCount < 0 || loadFailureCount < 0
+                || totalLoadTime < 0 || evictionCount < 0 || evictionWeight < 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * 没有请求时是 1
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public double getMissRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 0.0 : (double) missCount / requests;
+    }
+
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * loader 抛出异常或者返回 null 的次数
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    public long getLoadCount() {
+        return loadSuccessCount + loadFailureCount;
+    }
+
+    /**
+     * 所有加载（包括失败的和后台刷新）花的总时间，纳秒
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * 平均每次加载的纳秒数
+     */
+    public double getAverageLoadPenalty() {
+        long loads = getLoadCount();
+        return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+    }
+
+    /**
+     * 因为容量被淘汰和过期移除的条目数
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getEvictionWeight() {
+        return evictionWeight;
+    }
+
+    /**
+     * 两次快照相减，得到这段时间内的统计；结果小于 0 的按 0 算
+     */
+    public CacheStats minus(CacheStats other) {
+        return new CacheStats(
+                Math.max(0L, hitCount - other.hitCount),
+                Math.max(0L, missCount - other.missCount),
+                Math.max(0L, loadSuccessCount - other.loadSuccessCount),
+                Math.max(0L, loadFailureCount - other.loadFailureCount),
+                Math.max(0L, totalLoadTime - other.totalLoadTime),
+                Math.max(0L, evictionCount - other.evictionCount),
+                Math.max(0L, evictionWeight - other.evictionWeight));
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", totalLoadTime=" + totalLoadTime +
+                ", evictionCount=" + evictionCount +
+                ", evictionWeight=" + evictionWeight +
+                '}';
+    }
+}
@@ -0,0 +1,112 @@
+package chapter5;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache 的计数器，都是 LongAdder，多线程同时记录时各自累加到不同的 cell 上，不会争抢同一个缓存行
+ */
+final class CacheStatsCounter implements CacheMXBean {
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder loadSuccesses = new LongAdder();
+    final LongAdder loadFailures = new LongAdder();
+    final LongAdder totalLoadTime = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder evictionWeight = new LongAdder();
+
+    private final Cache<?, ?> cache;
+
+    CacheStatsCounter(Cache<?, ?> cache) {
+        this.cache = cache;
+    }
+
+    void recordLoad(boolean success, long nanos) {
+        (success ? loadSuccesses : loadFailures).increment();
+        totalLoadTime.add(nanos);
+    }
+
+    void recordEviction(long weight) {
+        evictions.increment();
+        evictionWeight.add(weight);
+    }
+
+    /**
+     * 只是把每个计数 sum 一遍，不加锁
+     */
+    CacheStats snapshot() {
+        return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                totalLoadTime.sum(), evictions.sum(), evictionWeight.sum());
+    }
+
+    @Override
+    public boolean isStatsEnabled() {
+        return cache.isStatsEnabled();
+    }
+
+    @Override
+    public void setStatsEnabled(boolean enabled) {
+        cache.setStatsEnabled(enabled);
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        return snapshot().getHitRate();
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return loadSuccesses.sum();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return totalLoadTime.sum();
+    }
+
+    @Override
+    public double getAverageLoadPenalty() {
+        return snapshot().getAverageLoadPenalty();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getEvictionWeight() {
+        return evictionWeight.sum();
+    }
+
+    @Override
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        loadSuccesses.reset();
+        loadFailures.reset();
+        totalLoadTime.reset();
+        evictions.reset();
+        evictionWeight.reset();
+    }
+}
@@ -0,0 +1,13 @@
+package chapter5;
+
+/**
+ * Cache 存放条目的哈希表实现，构造时选择，见 Cache#Cache(long, ConcurrencyMode)
+ */
+public enum ConcurrencyMode {
+    // ConcurrentHashMap，读写都不挡读，适合大多数场景
+    CONCURRENT_HASH_MAP,
+    // 开放寻址表 + StampedLock，读走乐观读不写任何共享变量，写之间串行
+    STAMPED_LOCK,
+    // 每次写复制一份 HashMap 再整体替换，读只有一次 volatile 读；写是 O(n) 的，只适合很少变化的小表
+    COPY_ON_WRITE
+}
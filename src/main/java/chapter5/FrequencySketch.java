@@ -0,0 +1,104 @@
+package chapter5;
+
+/**
+ * TinyLFU 用的 Count-Min Sketch：每个计数器 4 位，一个 long 放 16 个。每个键用 4 个不同的种子哈希出 4 个 long，
+ * 在第 i 个 long 里取第 start + i 个计数器（start 由键的哈希决定，是 0、4、8、12 之一），
+ * 取这 4 个计数器的最小值作为访问频率的估计。记录次数达到 10 倍容量时所有计数器减半，让过去的热点慢慢冷下来。
+ * 条目数事先不知道时（按权重限制容量）可以先建一个小的，再用 ensureCapacity 跟着条目数变大。
+ * 不是线程安全的，只在 Cache 持有维护锁时访问
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    FrequencySketch(long maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * 按 maximumSize 个条目调整计数器的数量，只会变大，变大时已有的计数全部丢掉
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize, 1L), 1 << 30);
+        int n = 1;
+        while (n < maximum) {
+            n <<= 1;
+        }
+        if (table != null && table.length >= n) {
+            return;
+        }
+        table = new long[n];
+        tableMask = n - 1;
+        sampleSize = maximum > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * 估计的访问次数，最大 15
+     */
+    int frequency(Object e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有计数器减半；奇数减半时丢掉的那一半也从 size 里扣掉
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,55 @@
+package chapter5;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 同一个 JVM 里多个 Cache 共用的失效通知：它们都缓存同一个后端存储的数据，后端写入后发布改动的键，
+ * 订阅的每个 Cache 把键放进自己的无锁队列，在维护时成批移除。
+ * <p>
+ * 发布只是入队，再对每个 Cache 试一次维护锁（tryLock），不会阻塞在任何一个 Cache 上。
+ * 从发布到真正移除之间读到的仍然是旧值，这段时间通常就是当前维护锁的持有者做完这一轮维护的时间
+ */
+public class InvalidationBus<K> {
+
+    // 订阅很少变，发布时遍历不加锁
+    private final CopyOnWriteArrayList<Cache<K, ?>> subscribers = new CopyOnWriteArrayList<>();
+
+    public void subscribe(Cache<K, ?> cache) {
+        subscribers.addIfAbsent(cache);
+    }
+
+    public void unsubscribe(Cache<K, ?> cache) {
+        subscribers.remove(cache);
+    }
+
+    public void publish(K key) {
+        publishAll(null, Collections.singletonList(key));
+    }
+
+    /**
+     * 一批键一起发布，每个 Cache 只入队和尝试维护一次
+     */
+    public void publishAll(Collection<? extends K> keys) {
+        publishAll(null, keys);
+    }
+
+    /**
+     * 写入方自己的 Cache 通常已经放了新值，用 source 把它排除在外；source 为 null 表示通知所有订阅者
+     */
+    public void publishAll(Cache<K, ?> source, Collection<? extends K> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        for (Cache<K, ?> cache : subscribers) {
+            if (cache != source) {
+                cache.enqueueInvalidations(keys);
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+}
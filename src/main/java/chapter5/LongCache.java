@@ -0,0 +1,436 @@
+package chapter5;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+
+/**
+ * 键是 long 的有界缓存。条目直接放在每段自己的 long[] 键数组和 Object[] 值数组里（线性探测的开放寻址），
+ * 没有 Entry 对象也不装箱，每个条目大约是一个 long、一个引用和一个字节，查找只在连续的数组上探测。
+ * <p>
+ * 按键的哈希分成若干段，每段一把 StampedLock：读走乐观读，校验失败再退回读锁；写在段内串行。
+ * 淘汰用 CLOCK（二次机会）：读命中时把条目的访问位置 1，段满了以后指针往后扫，访问位是 1 的清零跳过，
+ * 碰到是 0 的就淘汰。访问位的写不加锁，偶尔丢一次只影响淘汰的先后。
+ * <p>
+ * 和 Cache 相比没有 W-TinyLFU 的准入、过期、刷新和堆外层，适合键是 ID、只需要有界和高命中的场景
+ */
+public class LongCache<V> {
+
+    private static final int MIN_TABLE = 16;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    // 正在加载的键，只在未命中时装箱
+    private final ConcurrentHashMap<Long, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+    private volatile boolean statsEnabled;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public LongCache(long maximumSize) {
+        this(maximumSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * 最多保留 maximumSize 个条目，平均分给 concurrencyLevel 个段（向上取 2 的幂），每段单独按 CLOCK 淘汰
+     */
+    public LongCache(long maximumSize, int concurrencyLevel) {
+        if (maximumSize <= 0 || maximumSize > Integer.MAX_VALUE || concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        // 每段至少 MIN_TABLE 个条目，太小的段淘汰得不准
+        int count = 1;
+        while (count < concurrencyLevel && (long) count * 2 * MIN_TABLE <= maximumSize) {
+            count <<= 1;
+        }
+        segments = newSegments(count);
+        int perSegment = (int) ((maximumSize + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(perSegment);
+        }
+        segmentShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    public V get(long key) {
+        long hash = spread(key);
+        V value = segmentFor(hash).get(key, hash);
+        if (statsEnabled) {
+            (value == null ? misses : hits).increment();
+        }
+        return value;
+    }
+
+    public void put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        long hash = spread(key);
+        if (segmentFor(hash).put(key, hash, value) && statsEnabled) {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * 取不到就用 loader 加载并放进缓存，同一个键同时只有一个调用方执行 loader，其他调用方等它的结果；
+     * loader 返回 null 时不缓存，直接返回 null
+     */
+    public V get(long key, LongFunction<? extends V> loader) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return join(inFlight);
+        }
+        try {
+            long hash = spread(key);
+            value = segmentFor(hash).get(key, hash);
+            if (value == null) {
+                value = load(key, loader);
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    public void invalidate(long key) {
+        long hash = spread(key);
+        segmentFor(hash).remove(key, hash);
+    }
+
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * 当前条目数，各段分别读取，不是同一时刻的值
+     */
+    public long size() {
+        long size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public boolean isStatsEnabled() {
+        return statsEnabled;
+    }
+
+    /**
+     * 打开后记录命中、未命中、加载和淘汰次数，关掉时读写路径上只多读一个 volatile
+     */
+    public void setStatsEnabled(boolean enabled) {
+        this.statsEnabled = enabled;
+    }
+
+    public CacheStats stats() {
+        long evicted = evictions.sum();
+        return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                totalLoadTime.sum(), evicted, evicted);
+    }
+
+    private V load(long key, LongFunction<? extends V> loader) {
+        if (!statsEnabled) {
+            return loader.apply(key);
+        }
+        long start = System.nanoTime();
+        V value = null;
+        try {
+            value = loader.apply(key);
+            return value;
+        } finally {
+            (value != null ? loadSuccesses : loadFailures).increment();
+            totalLoadTime.add(System.nanoTime() - start);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        // 高位选段，低位选槽，两者互不相关
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    /**
+     * murmur3 的 fmix64，连续的 ID 也能打散
+     */
+    private static long spread(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * 一段的开放寻址表。values[i] 为 null 表示空槽，所以键可以是任何 long（包括 0）。
+     * 表按需翻倍，装载因子不超过 3/4，最大到能放下 maximum 个条目为止
+     */
+    private static final class Segment<V> {
+        private final StampedLock lock = new StampedLock();
+        private final int maximum;
+        private final int maxTable;
+
+        // 以下字段在写锁里修改，读走乐观读
+        private long[] keys;
+        private Object[] values;
+        // CLOCK 的访问位，读不加锁直接写
+        private byte[] referenced;
+        private int size;
+        private int hand;
+
+        Segment(int maximum) {
+            this.maximum = maximum;
+            this.maxTable = tableSizeFor(maximum);
+            allocate(Math.min(MIN_TABLE, maxTable));
+        }
+
+        V get(long key, long hash) {
+            long stamp = lock.tryOptimisticRead();
+            long[] ks = keys;
+            Object[] vs = values;
+            byte[] refs = referenced;
+            int i = find(ks, vs, key, hash);
+            Object value = i < 0 ? null : vs[i];
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    refs = referenced;
+                    i = find(keys, values, key, hash);
+                    value = i < 0 ? null : values[i];
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (value == null) {
+                return null;
+            }
+            // 数组可能已经被扩容换掉，写到旧数组上只是丢了这一次访问
+            if (refs[i] == 0) {
+                refs[i] = 1;
+            }
+            @SuppressWarnings("unchecked")
+            V v = (V) value;
+            return v;
+        }
+
+        /**
+         * 返回这次写入是否淘汰了一个条目
+         */
+        boolean put(long key, long hash, V value) {
+            long stamp = lock.writeLock();
+            try {
+                int i = find(keys, values, key, hash);
+                if (i >= 0) {
+                    values[i] = value;
+                    referenced[i] = 1;
+                    return false;
+                }
+                boolean evicted = false;
+                if (size >= maximum) {
+                    evict();
+                    evicted = true;
+                } else if ((size + 1) * 4L > keys.length * 3L && keys.length < maxTable) {
+                    allocate(keys.length << 1);
+                }
+                insert(key, hash, value);
+                size++;
+                return evicted;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(long key, long hash) {
+            long stamp = lock.writeLock();
+            try {
+                int i = find(keys, values, key, hash);
+                if (i >= 0) {
+                    delete(i);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                keys = new long[Math.min(MIN_TABLE, maxTable)];
+                values = new Object[keys.length];
+                referenced = new byte[keys.length];
+                size = 0;
+                hand = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.tryOptimisticRead();
+            int n = size;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    n = size;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return n;
+        }
+
+        /**
+         * 在一个数组快照上最多探测一圈，乐观读看到的不一致由调用方校验
+         */
+        private int find(long[] ks, Object[] vs, long key, long hash) {
+            // 乐观读可能正好碰上扩容，拿到一新一旧两个数组
+            if (ks.length != vs.length) {
+                return -1;
+            }
+            int mask = ks.length - 1;
+            int i = (int) hash & mask;
+            for (int probes = 0; probes < ks.length; probes++) {
+                if (vs[i] == null) {
+                    return -1;
+                }
+                if (ks[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        // 调用方持有写锁，表里一定有空槽
+        private void insert(long key, long hash, Object value) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            referenced[i] = 0;
+        }
+
+        /**
+         * CLOCK：指针扫过的条目访问位是 1 就清零给一次机会，是 0 就淘汰；最多扫两圈一定能找到
+         */
+        private void evict() {
+            int mask = keys.length - 1;
+            for (;;) {
+                int i = hand;
+                hand = (hand + 1) & mask;
+                if (values[i] == null) {
+                    continue;
+                }
+                if (referenced[i] != 0) {
+                    referenced[i] = 0;
+                    continue;
+                }
+                delete(i);
+                // 后移补位的条目可能挪到了 i，下次从 i 开始看
+                hand = i;
+                return;
+            }
+        }
+
+        /**
+         * 删除 i 处的条目，后面同一段连续的条目里理想位置不在 (i, j] 之间的往前挪，不留墓碑
+         */
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            values[i] = null;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int k = (int) spread(keys[j]) & mask;
+                if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    referenced[i] = referenced[j];
+                    values[j] = null;
+                    i = j;
+                }
+            }
+            size--;
+        }
+
+        // 调用方持有写锁（或者在构造函数里）
+        private void allocate(int length) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            byte[] oldReferenced = referenced;
+            keys = new long[length];
+            values = new Object[length];
+            referenced = new byte[length];
+            hand = 0;
+            if (oldKeys == null) {
+                return;
+            }
+            int mask = length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = (int) spread(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                    referenced[i] = oldReferenced[j];
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Segment<V>[] newSegments(int count) {
+        return new Segment[count];
+    }
+
+    /**
+     * 放下 maximum 个条目且装载因子不超过 3/4 的最小 2 的幂
+     */
+    private static int tableSizeFor(int maximum) {
+        long needed = Math.max(MIN_TABLE, (maximum * 4L + 2) / 3);
+        long n = Long.highestOneBit(needed);
+        if (n < needed) {
+            n <<= 1;
+        }
+        return (int) Math.min(n, 1 << 30);
+    }
+}
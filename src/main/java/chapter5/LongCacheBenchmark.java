@@ -0,0 +1,107 @@
+package chapter5;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对比 Cache<Long, Object> 和 LongCache<Object>：先各放 entries 个条目，Full GC 后看堆增加了多少，
+ * 折算成每个条目的字节数（值是同一个对象，不计在内）；再用 1/8/32 个线程随机读 seconds 秒，输出每秒操作数
+ * 用法：LongCacheBenchmark [entries] [seconds]
+ */
+public class LongCacheBenchmark {
+
+    private static final int[] THREADS = {1, 8, 32};
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        long before = usedHeap();
+        Cache<Long, Object> cache = new Cache<>(entries);
+        for (long i = 0; i < entries; i++) {
+            cache.put(i, VALUE);
+        }
+        cache.cleanUp();
+        long cacheBytes = usedHeap() - before;
+
+        before = usedHeap();
+        LongCache<Object> longCache = new LongCache<>(entries * 2L);
+        for (long i = 0; i < entries; i++) {
+            longCache.put(i, VALUE);
+        }
+        long longCacheBytes = usedHeap() - before;
+
+        System.out.printf("%-12s %14s %10s%n", "impl", "heap bytes", "per entry");
+        System.out.printf("%-12s %14d %10d%n", "Cache", cacheBytes, cacheBytes / entries);
+        System.out.printf("%-12s %14d %10d%n", "LongCache", longCacheBytes, longCacheBytes / entries);
+
+        System.out.printf("%n%-12s %8s %14s%n", "impl", "threads", "ops/s");
+        // 第一轮当预热
+        for (int round = 0; round < 2; round++) {
+            for (int threads : THREADS) {
+                long cacheOps = run(key -> cache.get(key), entries, threads, seconds);
+                long longCacheOps = run(longCache::get, entries, threads, seconds);
+                if (round == 1) {
+                    System.out.printf("%-12s %8d %14d%n", "Cache", threads, cacheOps);
+                    System.out.printf("%-12s %8d %14d%n", "LongCache", threads, longCacheOps);
+                }
+            }
+        }
+    }
+
+    interface Reader {
+        Object get(long key);
+    }
+
+    static long run(Reader reader, int entries, int threads, int seconds) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        LongAdder ops = new LongAdder();
+        // 读到的结果要用上，防止 JIT 把读当成无用代码消掉
+        LongAdder misses = new LongAdder();
+        long[] stopAt = new long[1];
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    long count = 0;
+                    long missed = 0;
+                    while (System.nanoTime() < stopAt[0]) {
+                        for (int j = 0; j < 64; j++) {
+                            if (reader.get(random.nextInt(entries)) == null) {
+                                missed++;
+                            }
+                        }
+                        count += 64;
+                    }
+                    ops.add(count);
+                    misses.add(missed);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    end.countDown();
+                }
+            }, "BenchmarkThread-" + i).start();
+        }
+        stopAt[0] = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        end.await();
+        if (misses.sum() > 0) {
+            System.out.println("unexpected misses: " + misses.sum());
+        }
+        return ops.sum() / seconds;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
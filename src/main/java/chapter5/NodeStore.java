@@ -0,0 +1,419 @@
+package chapter5;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Cache 里从键到条目的哈希表，三种实现对应 ConcurrencyMode。淘汰策略不在这里，这里只管查找和增删
+ */
+interface NodeStore<K, V> {
+
+    Cache.Node<K, V> get(Object key);
+
+    /**
+     * 键不存在时放入 node 返回 null，否则返回已有的条目
+     */
+    Cache.Node<K, V> putIfAbsent(K key, Cache.Node<K, V> node);
+
+    /**
+     * 只有键当前对应的就是 node 时才删除
+     */
+    boolean remove(K key, Cache.Node<K, V> node);
+
+    /**
+     * 批量查找，结果和 keys 一一对应，不存在的是 null。默认逐个 get，需要加锁或复制的实现整批只做一次
+     */
+    default List<Cache.Node<K, V>> getAll(List<? extends K> keys) {
+        List<Cache.Node<K, V>> found = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            found.add(get(key));
+        }
+        return found;
+    }
+
+    /**
+     * 批量 putIfAbsent，结果和 nodes 一一对应：放进去了是 null，否则是已有的条目
+     */
+    default List<Cache.Node<K, V>> putAllIfAbsent(List<Cache.Node<K, V>> nodes) {
+        List<Cache.Node<K, V>> existing = new ArrayList<>(nodes.size());
+        for (Cache.Node<K, V> node : nodes) {
+            existing.add(putIfAbsent(node.key, node));
+        }
+        return existing;
+    }
+
+    /**
+     * 清空，返回被清掉的条目
+     */
+    Collection<Cache.Node<K, V>> clear();
+
+    /**
+     * 遍历当前的条目，遍历期间可以增删
+     */
+    void forEach(Consumer<Cache.Node<K, V>> action);
+
+    int size();
+
+    static <K, V> NodeStore<K, V> of(ConcurrencyMode mode) {
+        switch (mode) {
+            case STAMPED_LOCK:
+                return new StampedStore<>();
+            case COPY_ON_WRITE:
+                return new CopyOnWriteStore<>();
+            default:
+                return new ConcurrentStore<>();
+        }
+    }
+
+    final class ConcurrentStore<K, V> implements NodeStore<K, V> {
+        private final ConcurrentHashMap<K, Cache.Node<K, V>> map = new ConcurrentHashMap<>();
+
+        @Override
+        public Cache.Node<K, V> get(Object key) {
+            return map.get(key);
+        }
+
+        @Override
+        public Cache.Node<K, V> putIfAbsent(K key, Cache.Node<K, V> node) {
+            return map.putIfAbsent(key, node);
+        }
+
+        @Override
+        public boolean remove(K key, Cache.Node<K, V> node) {
+            return map.remove(key, node);
+        }
+
+        @Override
+        public Collection<Cache.Node<K, V>> clear() {
+            List<Cache.Node<K, V>> removed = new ArrayList<>();
+            for (Cache.Node<K, V> node : map.values()) {
+                if (map.remove(node.key, node)) {
+                    removed.add(node);
+                }
+            }
+            return removed;
+        }
+
+        @Override
+        public void forEach(Consumer<Cache.Node<K, V>> action) {
+            map.values().forEach(action);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+    }
+
+    /**
+     * 线性探测的开放寻址表，槽里直接放条目。读先走乐观读，在数组的一个快照上最多探测一圈，
+     * 校验失败（期间有写）再退回读锁，所以读不会因为看到写了一半的表而出错或死循环。
+     * 删除时把后面的条目往前挪，不留墓碑
+     */
+    final class StampedStore<K, V> implements NodeStore<K, V> {
+        private final StampedLock lock = new StampedLock();
+        private Cache.Node<K, V>[] table = newTable(16);
+        private int size;
+
+        @Override
+        public Cache.Node<K, V> get(Object key) {
+            long stamp = lock.tryOptimisticRead();
+            Cache.Node<K, V> node = find(table, key);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    node = find(table, key);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return node;
+        }
+
+        /**
+         * 整批在一次乐观读里查完，最后校验一次，失败再整批在读锁里重查
+         */
+        @Override
+        public List<Cache.Node<K, V>> getAll(List<? extends K> keys) {
+            List<Cache.Node<K, V>> found = new ArrayList<>(keys.size());
+            long stamp = lock.tryOptimisticRead();
+            Cache.Node<K, V>[] tab = table;
+            for (K key : keys) {
+                found.add(find(tab, key));
+            }
+            if (!lock.validate(stamp)) {
+                found.clear();
+                stamp = lock.readLock();
+                try {
+                    for (K key : keys) {
+                        found.add(find(table, key));
+                    }
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public Cache.Node<K, V> putIfAbsent(K key, Cache.Node<K, V> node) {
+            long stamp = lock.writeLock();
+            try {
+                return insertIfAbsent(node);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * 整批只拿一次写锁
+         */
+        @Override
+        public List<Cache.Node<K, V>> putAllIfAbsent(List<Cache.Node<K, V>> nodes) {
+            List<Cache.Node<K, V>> existing = new ArrayList<>(nodes.size());
+            long stamp = lock.writeLock();
+            try {
+                for (Cache.Node<K, V> node : nodes) {
+                    existing.add(insertIfAbsent(node));
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return existing;
+        }
+
+        // 调用方持有写锁
+        private Cache.Node<K, V> insertIfAbsent(Cache.Node<K, V> node) {
+            Cache.Node<K, V> existing = find(table, node.key);
+            if (existing != null) {
+                return existing;
+            }
+            if ((size + 1) * 2 > table.length) {
+                resize();
+            }
+            insert(table, node);
+            size++;
+            return null;
+        }
+
+        @Override
+        public boolean remove(K key, Cache.Node<K, V> node) {
+            long stamp = lock.writeLock();
+            try {
+                Cache.Node<K, V>[] tab = table;
+                int mask = tab.length - 1;
+                int i = spread(key.hashCode()) & mask;
+                while (tab[i] != node) {
+                    if (tab[i] == null) {
+                        return false;
+                    }
+                    i = (i + 1) & mask;
+                }
+                tab[i] = null;
+                // 后面同一段连续的条目里，理想位置不在 (i, j] 之间的挪到空出来的 i
+                for (int j = (i + 1) & mask; tab[j] != null; j = (j + 1) & mask) {
+                    int k = spread(tab[j].key.hashCode()) & mask;
+                    if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                        tab[i] = tab[j];
+                        tab[j] = null;
+                        i = j;
+                    }
+                }
+                size--;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public Collection<Cache.Node<K, V>> clear() {
+            long stamp = lock.writeLock();
+            try {
+                List<Cache.Node<K, V>> removed = snapshot();
+                table = newTable(16);
+                size = 0;
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public void forEach(Consumer<Cache.Node<K, V>> action) {
+            List<Cache.Node<K, V>> nodes;
+            long stamp = lock.readLock();
+            try {
+                nodes = snapshot();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            // 在锁外回调，回调里可以删除
+            nodes.forEach(action);
+        }
+
+        @Override
+        public int size() {
+            long stamp = lock.tryOptimisticRead();
+            int n = size;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    n = size;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return n;
+        }
+
+        private List<Cache.Node<K, V>> snapshot() {
+            List<Cache.Node<K, V>> nodes = new ArrayList<>(size);
+            for (Cache.Node<K, V> node : table) {
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+            return nodes;
+        }
+
+        private void resize() {
+            Cache.Node<K, V>[] bigger = newTable(table.length << 1);
+            for (Cache.Node<K, V> node : table) {
+                if (node != null) {
+                    insert(bigger, node);
+                }
+            }
+            table = bigger;
+        }
+
+        private static <K, V> Cache.Node<K, V> find(Cache.Node<K, V>[] tab, Object key) {
+            int mask = tab.length - 1;
+            int i = spread(key.hashCode()) & mask;
+            for (int probes = 0; probes < tab.length; probes++) {
+                Cache.Node<K, V> node = tab[i];
+                if (node == null) {
+                    return null;
+                }
+                // 乐观读时可能看到还没初始化完的节点，key 放在 equals 左边
+                if (key.equals(node.key)) {
+                    return node;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private static <K, V> void insert(Cache.Node<K, V>[] tab, Cache.Node<K, V> node) {
+            int mask = tab.length - 1;
+            int i = spread(node.key.hashCode()) & mask;
+            while (tab[i] != null) {
+                i = (i + 1) & mask;
+            }
+            tab[i] = node;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <K, V> Cache.Node<K, V>[] newTable(int length) {
+            return new Cache.Node[length];
+        }
+
+        private static int spread(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * 写的时候复制整张表再用 volatile 替换，读直接查当前快照
+     */
+    final class CopyOnWriteStore<K, V> implements NodeStore<K, V> {
+        private volatile HashMap<K, Cache.Node<K, V>> snapshot = new HashMap<>();
+
+        @Override
+        public Cache.Node<K, V> get(Object key) {
+            return snapshot.get(key);
+        }
+
+        @Override
+        public synchronized Cache.Node<K, V> putIfAbsent(K key, Cache.Node<K, V> node) {
+            Cache.Node<K, V> existing = snapshot.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            HashMap<K, Cache.Node<K, V>> copy = new HashMap<>(snapshot);
+            copy.put(key, node);
+            snapshot = copy;
+            return null;
+        }
+
+        /**
+         * 整批查同一个快照
+         */
+        @Override
+        public List<Cache.Node<K, V>> getAll(List<? extends K> keys) {
+            HashMap<K, Cache.Node<K, V>> current = snapshot;
+            List<Cache.Node<K, V>> found = new ArrayList<>(keys.size());
+            for (K key : keys) {
+                found.add(current.get(key));
+            }
+            return found;
+        }
+
+        /**
+         * 整批只复制一次表
+         */
+        @Override
+        public synchronized List<Cache.Node<K, V>> putAllIfAbsent(List<Cache.Node<K, V>> nodes) {
+            List<Cache.Node<K, V>> existing = new ArrayList<>(nodes.size());
+            HashMap<K, Cache.Node<K, V>> copy = null;
+            for (Cache.Node<K, V> node : nodes) {
+                Cache.Node<K, V> prior = (copy == null ? snapshot : copy).get(node.key);
+                if (prior == null) {
+                    if (copy == null) {
+                        copy = new HashMap<>(snapshot);
+                    }
+                    copy.put(node.key, node);
+                }
+                existing.add(prior);
+            }
+            if (copy != null) {
+                snapshot = copy;
+            }
+            return existing;
+        }
+
+        @Override
+        public synchronized boolean remove(K key, Cache.Node<K, V> node) {
+            if (snapshot.get(key) != node) {
+                return false;
+            }
+            HashMap<K, Cache.Node<K, V>> copy = new HashMap<>(snapshot);
+            copy.remove(key);
+            snapshot = copy;
+            return true;
+        }
+
+        @Override
+        public synchronized Collection<Cache.Node<K, V>> clear() {
+            Collection<Cache.Node<K, V>> removed = snapshot.values();
+            snapshot = new HashMap<>();
+            return removed;
+        }
+
+        @Override
+        public void forEach(Consumer<Cache.Node<K, V>> action) {
+            snapshot.values().forEach(action);
+        }
+
+        @Override
+        public int size() {
+            return snapshot.size();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package chapter5;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Cache 的堆外层：被容量淘汰的条目序列化后放进 SlabAllocator 分出来的堆外块，再次访问时取出来放回堆内。
+ * 块的布局是 [int 长度][long 写入时间][序列化后的字节]。内存不够时淘汰同一尺寸等级里最早放进来的条目，
+ * 还是放不下就放弃这次溢出。所有方法用 this 加锁，反序列化在锁外做
+ */
+final class OffHeapStore<K, V> {
+
+    private static final int HEADER = 12;
+
+    private final SlabAllocator allocator;
+    private final Serializer<V> serializer;
+    private final HashMap<K, Long> index = new HashMap<>();
+    // 每个尺寸等级里的键，按放入的先后排列
+    private final List<LinkedHashSet<K>> order = new ArrayList<>();
+
+    OffHeapStore(long capacityBytes, int slabSize, Serializer<V> serializer) {
+        this.allocator = new SlabAllocator(capacityBytes, slabSize);
+        this.serializer = serializer;
+    }
+
+    /**
+     * 放进堆外，放不下或者序列化失败返回 false
+     */
+    boolean put(K key, V value, long writeTime) {
+        byte[] bytes;
+        try {
+            bytes = serializer.serialize(value);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+        int size = HEADER + bytes.length;
+        int sizeClass = allocator.sizeClass(size);
+        if (sizeClass < 0) {
+            return false;
+        }
+        synchronized (this) {
+            remove(key);
+            long address;
+            while ((address = allocator.allocate(size)) < 0L) {
+                Iterator<K> oldest = keysOf(sizeClass).iterator();
+                if (!oldest.hasNext()) {
+                    return false;
+                }
+                remove(oldest.next());
+            }
+            ByteBuffer slab = allocator.slab(address);
+            int offset = SlabAllocator.offset(address);
+            slab.putInt(offset, bytes.length);
+            slab.putLong(offset + 4, writeTime);
+            ByteBuffer target = slab.duplicate();
+            target.position(offset + HEADER);
+            target.put(bytes);
+            index.put(key, address);
+            keysOf(sizeClass).add(key);
+            return true;
+        }
+    }
+
+    /**
+     * 取出并从堆外删掉，返回一个还没放进 Cache 的节点，带着原来的写入时间；不存在返回 null
+     */
+    Cache.Node<K, V> take(K key) {
+        byte[] bytes;
+        long writeTime;
+        synchronized (this) {
+            Long address = index.remove(key);
+            if (address == null) {
+                return null;
+            }
+            ByteBuffer slab = allocator.slab(address);
+            int offset = SlabAllocator.offset(address);
+            bytes = new byte[slab.getInt(offset)];
+            writeTime = slab.getLong(offset + 4);
+            ByteBuffer source = slab.duplicate();
+            source.position(offset + HEADER);
+            source.get(bytes);
+            release(key, address, HEADER + bytes.length);
+        }
+        Cache.Node<K, V> node = new Cache.Node<>(key, serializer.deserialize(bytes));
+        node.writeTime = writeTime;
+        return node;
+    }
+
+    synchronized void remove(K key) {
+        Long address = index.remove(key);
+        if (address != null) {
+            ByteBuffer slab = allocator.slab(address);
+            release(key, address, HEADER + slab.getInt(SlabAllocator.offset(address)));
+        }
+    }
+
+    synchronized void clear() {
+        index.clear();
+        order.clear();
+        allocator.reset();
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized long allocatedBytes() {
+        return allocator.allocatedBytes();
+    }
+
+    private void release(K key, long address, int size) {
+        keysOf(allocator.sizeClass(size)).remove(key);
+        allocator.free(address, size);
+    }
+
+    private LinkedHashSet<K> keysOf(int sizeClass) {
+        while (order.size() <= sizeClass) {
+            order.add(new LinkedHashSet<>());
+        }
+        return order.get(sizeClass);
+    }
+}
@@ -0,0 +1,83 @@
+package chapter5;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 记录读操作的有损缓冲：按线程分条，每条是一个固定大小的环，读线程只 CAS 自己那一条的写指针，不用加锁。
+ * 环满了或者抢不到就直接丢掉这次记录，访问顺序本来就只是个近似，丢一些不影响淘汰的效果。
+ * 只有持有维护锁的线程会调用 drainTo
+ */
+final class ReadBuffer<E> {
+
+    static final int SUCCESS = 0;
+    static final int FAILED = 1;
+    static final int FULL = 2;
+
+    private static final int RING_SIZE = 16;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    private final Ring<E>[] rings;
+    private final int mask;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ReadBuffer() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        rings = new Ring[n];
+        mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            rings[i] = new Ring<>();
+        }
+    }
+
+    /**
+     * 返回 FULL 时调用方应该尽快把缓冲排空
+     */
+    int offer(E e) {
+        Ring<E> ring = rings[stripe()];
+        long head = ring.readCounter;
+        long tail = ring.writeCounter.get();
+        if (tail - head >= RING_SIZE) {
+            return FULL;
+        }
+        if (ring.writeCounter.compareAndSet(tail, tail + 1)) {
+            ring.buffer.lazySet((int) tail & RING_MASK, e);
+            return SUCCESS;
+        }
+        return FAILED;
+    }
+
+    void drainTo(Consumer<E> consumer) {
+        for (Ring<E> ring : rings) {
+            long head = ring.readCounter;
+            long tail = ring.writeCounter.get();
+            for (; head != tail; head++) {
+                int index = (int) head & RING_MASK;
+                E e = ring.buffer.get(index);
+                if (e == null) {
+                    // 写指针已经推进了，元素还没放进来，下次再取
+                    break;
+                }
+                ring.buffer.lazySet(index, null);
+                consumer.accept(e);
+            }
+            ring.readCounter = head;
+        }
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    static final class Ring<E> {
+        final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(RING_SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        volatile long readCounter;
+    }
+}
@@ -0,0 +1,41 @@
+package chapter5;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// 原来基于 HashMap + ReentrantReadWriteLock 的无界缓存，写的时候挡住所有读，保留下来做性能对比
+public class ReadWriteLockCache {
+    static Map<String, Object> cacheMap = new HashMap<>();
+    static ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    static Lock readLock = readWriteLock.readLock();
+    static Lock writeLock = readWriteLock.writeLock();
+
+    public Object get(String key) {
+        readLock.lock();
+        try {
+            return cacheMap.get(key);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public void put(String key, Object o) {
+        writeLock.lock();
+        try {
+            cacheMap.put(key, o);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void clear() {
+        writeLock.lock();
+        try {
+            cacheMap.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
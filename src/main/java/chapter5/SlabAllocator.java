@@ -0,0 +1,116 @@
+package chapter5;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 堆外内存的 slab 分配器：内存按 slabSize 一块块用 ByteBuffer.allocateDirect 申请，每块 slab 分给一个尺寸等级
+ * （64 字节起，每级翻倍，最大一整块 slab），切成同样大小的块；释放的块挂在本等级的空闲栈上给下次分配。
+ * 块地址是一个 long，高 32 位是 slab 编号，低 32 位是 slab 内的偏移。
+ * slab 分给某个等级后不再回收，值的大小分布变化很大时会有浪费。不是线程安全的，由 OffHeapStore 加锁
+ */
+final class SlabAllocator {
+
+    static final int MIN_CHUNK = 64;
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    // 每个尺寸等级的空闲块，以及正在切分的 slab 和切到的位置
+    private final long[][] freeChunks;
+    private final int[] freeCount;
+    private final int[] carveSlab;
+    private final int[] carveOffset;
+
+    SlabAllocator(long capacityBytes, int slabSize) {
+        if (slabSize < MIN_CHUNK || Integer.bitCount(slabSize) != 1 || capacityBytes < slabSize) {
+            throw new IllegalArgumentException("无效的参数");
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(capacityBytes / slabSize, Integer.MAX_VALUE);
+        int classes = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK) + 1;
+        freeChunks = new long[classes][];
+        freeCount = new int[classes];
+        carveSlab = new int[classes];
+        carveOffset = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            freeChunks[i] = new long[16];
+            carveSlab[i] = -1;
+        }
+    }
+
+    /**
+     * size 字节的块属于哪个等级，比 slab 还大的返回 -1
+     */
+    int sizeClass(int size) {
+        if (size > slabSize) {
+            return -1;
+        }
+        int chunk = Math.max(size, MIN_CHUNK);
+        return 32 - Integer.numberOfLeadingZeros(chunk - 1) - Integer.numberOfTrailingZeros(MIN_CHUNK);
+    }
+
+    /**
+     * 分配一个能放下 size 字节的块，内存用完了返回 -1
+     */
+    long allocate(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            return -1L;
+        }
+        if (freeCount[sizeClass] > 0) {
+            return freeChunks[sizeClass][--freeCount[sizeClass]];
+        }
+        int chunkSize = MIN_CHUNK << sizeClass;
+        if (carveSlab[sizeClass] < 0 || carveOffset[sizeClass] + chunkSize > slabSize) {
+            if (slabs.size() >= maxSlabs) {
+                return -1L;
+            }
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            carveSlab[sizeClass] = slabs.size() - 1;
+            carveOffset[sizeClass] = 0;
+        }
+        long address = ((long) carveSlab[sizeClass] << 32) | carveOffset[sizeClass];
+        carveOffset[sizeClass] += chunkSize;
+        return address;
+    }
+
+    void free(long address, int size) {
+        int sizeClass = sizeClass(size);
+        if (freeCount[sizeClass] == freeChunks[sizeClass].length) {
+            freeChunks[sizeClass] = Arrays.copyOf(freeChunks[sizeClass], freeCount[sizeClass] * 2);
+        }
+        freeChunks[sizeClass][freeCount[sizeClass]++] = address;
+    }
+
+    /**
+     * 块所在的 slab，调用方用 offset(address) 处的绝对位置读写
+     */
+    ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * 丢掉所有 slab，直接内存等 ByteBuffer 被回收时释放
+     */
+    void reset() {
+        slabs.clear();
+        Arrays.fill(freeCount, 0);
+        Arrays.fill(carveSlab, -1);
+        Arrays.fill(carveOffset, 0);
+    }
+
+    /**
+     * 已经申请的堆外内存字节数
+     */
+    long allocatedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+}
@@ -0,0 +1,145 @@
+package chapter5;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * 分层时间轮，给 Cache 的过期用。五层的刻度大约是 1 秒、1 分钟、1 小时、1.6 天和 6.5 天，
+ * 每层一圈若干个桶，桶是以哨兵节点开头的双向环形链表。到期时间越远放得越高，
+ * 时间推进到高层的桶时，桶里的条目没到期就按剩下的时间重新放进低层，插入、删除和每个条目的过期都是 O(1) 的。
+ * 不是线程安全的，只在 Cache 持有维护锁时访问
+ */
+final class TimerWheel<K, V> {
+
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    private static final long[] SPANS = {
+            ceilingPowerOfTwo(TimeUnit.SECONDS.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.MINUTES.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.HOURS.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+    };
+    private static final long[] SHIFT = new long[SPANS.length];
+
+    static {
+        for (int i = 0; i < SPANS.length; i++) {
+            SHIFT[i] = Long.numberOfTrailingZeros(SPANS[i]);
+        }
+    }
+
+    private final Cache.Node<K, V>[][] wheel;
+
+    // 上一次推进到的时间
+    private long nanos;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long nanos) {
+        this.nanos = nanos;
+        wheel = new Cache.Node[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Cache.Node[BUCKETS[i]];
+            for (int j = 0; j < wheel[i].length; j++) {
+                Cache.Node<K, V> sentinel = new Cache.Node<>(null, null);
+                sentinel.prevInTimer = sentinel;
+                sentinel.nextInTimer = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * 推进到 currentNanos，把经过的桶里的条目交给 expirer：返回 true 表示已经过期移除，
+     * 返回 false（比如刚被访问或改写过）就按它现在的 expiresAt 重新放回轮子
+     */
+    void advance(long currentNanos, Predicate<Cache.Node<K, V>> expirer) {
+        long previous = nanos;
+        nanos = currentNanos;
+        for (int i = 0; i < SHIFT.length - 1; i++) {
+            long previousTicks = previous >>> SHIFT[i];
+            long currentTicks = currentNanos >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, expirer);
+        }
+    }
+
+    private void expire(int index, long previousTicks, long delta, Predicate<Cache.Node<K, V>> expirer) {
+        Cache.Node<K, V>[] buckets = wheel[index];
+        int mask = buckets.length - 1;
+        int steps = (int) Math.min(1L + delta, buckets.length);
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+        for (int i = start; i < end; i++) {
+            Cache.Node<K, V> sentinel = buckets[i & mask];
+            Cache.Node<K, V> node = sentinel.nextInTimer;
+            sentinel.prevInTimer = sentinel;
+            sentinel.nextInTimer = sentinel;
+            while (node != sentinel) {
+                Cache.Node<K, V> next = node.nextInTimer;
+                node.prevInTimer = null;
+                node.nextInTimer = null;
+                if (node.expiresAt - nanos > 0L || !expirer.test(node)) {
+                    schedule(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * 按 node.expiresAt 放进对应的桶，已经在轮子里的先摘下来
+     */
+    void schedule(Cache.Node<K, V> node) {
+        deschedule(node);
+        Cache.Node<K, V> sentinel = findBucket(Math.max(node.expiresAt, nanos));
+        node.prevInTimer = sentinel.prevInTimer;
+        node.nextInTimer = sentinel;
+        sentinel.prevInTimer.nextInTimer = node;
+        sentinel.prevInTimer = node;
+    }
+
+    void deschedule(Cache.Node<K, V> node) {
+        if (node.nextInTimer != null) {
+            node.nextInTimer.prevInTimer = node.prevInTimer;
+            node.prevInTimer.nextInTimer = node.nextInTimer;
+            node.prevInTimer = null;
+            node.nextInTimer = null;
+        }
+    }
+
+    void clear() {
+        for (Cache.Node<K, V>[] buckets : wheel) {
+            for (Cache.Node<K, V> sentinel : buckets) {
+                // 断开挂着的节点，之后再 deschedule 它们不会改到哨兵
+                Cache.Node<K, V> node = sentinel.nextInTimer;
+                while (node != sentinel) {
+                    Cache.Node<K, V> next = node.nextInTimer;
+                    node.prevInTimer = null;
+                    node.nextInTimer = null;
+                    node = next;
+                }
+                sentinel.prevInTimer = sentinel;
+                sentinel.nextInTimer = sentinel;
+            }
+        }
+    }
+
+    private Cache.Node<K, V> findBucket(long time) {
+        long duration = time - nanos;
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = time >>> SHIFT[i];
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[length][0];
+    }
+
+    private static long ceilingPowerOfTwo(long x) {
+        return 1L << -Long.numberOfLeadingZeros(x - 1);
+    }
+}
@@ -0,0 +1,24 @@
+package chapter5;
+
+/**
+ * 计算条目占多少容量，Cache 按权重之和限制大小时用它，一般返回值的近似字节数。
+ * 条目放进缓存时调用一次，之后值不变权重就不变；要求线程安全，不能返回负数
+ */
+public interface Weigher<K, V> {
+
+    int weigh(K key, V value);
+
+    /**
+     * 每个条目都算 1，容量就是条目数
+     */
+    static <K, V> Weigher<K, V> singleton() {
+        return (key, value) -> 1;
+    }
+
+    /**
+     * byte[] 值按长度算，键不计
+     */
+    static <K> Weigher<K, byte[]> byteArray() {
+        return (key, value) -> value.length;
+    }
+}